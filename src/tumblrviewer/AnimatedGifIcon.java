@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import javax.swing.Icon;
+
+/**
+ * An icon that paints whichever frame of an animated GIF is current. The
+ * GifAnimationEngine takes care of repainting it when the frame changes.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class AnimatedGifIcon implements Icon
+{
+    private final GifAnimationEngine.Frames frames;
+
+    AnimatedGifIcon(GifAnimationEngine.Frames frames)
+    {
+        this.frames = frames;
+    }
+
+    GifAnimationEngine.Frames getFrames()
+    {
+        return frames;
+    }
+
+    @Override
+    public void paintIcon(Component c, Graphics g, int x, int y)
+    {
+        int frame = frames.currentFrame(System.currentTimeMillis());
+        g.drawImage(frames.images[frame], x, y, null);
+        GifAnimationEngine.painted(c, this, x, y, getIconWidth(), getIconHeight(), frame);
+    }
+
+    /**
+     * Paints the current frame stretched to a size. This has to be used
+     * rather than painting through a scaled Graphics so that the right area
+     * is repainted when the frame changes.
+     */
+    public void paintIcon(Component c, Graphics g, int x, int y, int width, int height)
+    {
+        int frame = frames.currentFrame(System.currentTimeMillis());
+        Graphics2D scaled = (Graphics2D) g.create();
+        scaled.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        scaled.drawImage(frames.images[frame], x, y, width, height, null);
+        scaled.dispose();
+        GifAnimationEngine.painted(c, this, x, y, width, height, frame);
+    }
+
+    @Override
+    public int getIconWidth()
+    {
+        return frames.images[0].getWidth();
+    }
+
+    @Override
+    public int getIconHeight()
+    {
+        return frames.images[0].getHeight();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.JumblrClient;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+
+/**
+ * Keeps blog avatars in memory so that the same avatar is only fetched once no
+ * matter how many menus ask for it. Small sizes are derived by scaling down a
+ * larger copy that has already been fetched, and simultaneous requests for the
+ * same avatar share a single download.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class AvatarCache
+{
+    private static final int MINIMUM_FETCH_SIZE = 64; //Fetching this covers the 16px and 64px menus in one go
+    private static final long DISK_CACHE_REFRESH_MS = 7L * 24 * 60 * 60 * 1000;
+    /* End of constants*/
+    private static final LinkedHashMap<String, CachedAvatar> avatars = new LinkedHashMap<>(64, 0.75f, true);
+    private static final ConcurrentHashMap<String, FutureTask<BufferedImage>> inFlight = new ConcurrentHashMap<>();
+    private static long cachedBytes = 0;
+
+    private static class CachedAvatar
+    {
+        final BufferedImage source;
+        final HashMap<Integer, ImageIcon> scaled = new HashMap<>();
+        long bytes;
+
+        CachedAvatar(BufferedImage source)
+        {
+            this.source = source;
+            this.bytes = pixelBytes(source.getWidth(), source.getHeight());
+        }
+    }
+
+    /**
+     * Gets a blog's avatar at the requested size.
+     *
+     * @param client the client used if the avatar has to be fetched
+     * @param blogName the blog whose avatar we want
+     * @param avatarSize the size in pixels (16, 24, 30, 40, 48, 64, 96, 128 or
+     * 512)
+     * @return the avatar or null if it couldn't be loaded
+     */
+    public static ImageIcon getAvatar(JumblrClient client, String blogName, int avatarSize)
+    {
+        ImageIcon icon = getCachedAvatar(blogName, avatarSize);
+        if (icon != null)
+        {
+            return icon;
+        }
+
+        final int fetchSize = Math.max(avatarSize, MINIMUM_FETCH_SIZE);
+        final String key = blogName + "/" + fetchSize;
+        FutureTask<BufferedImage> task = new FutureTask<>(new AvatarFetcher(client, blogName, fetchSize));
+        FutureTask<BufferedImage> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null)
+        {
+            task.run(); //We are the first to ask so fetch on this thread
+        }
+        else
+        {
+            task = existing; //Someone else is already fetching so wait for them
+        }
+
+        try
+        {
+            BufferedImage image = task.get();
+            if (image == null)
+            {
+                return null;
+            }
+            store(blogName, image);
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            return null;
+        }
+        finally
+        {
+            inFlight.remove(key, task);
+        }
+        return getCachedAvatar(blogName, avatarSize);
+    }
+
+    private static synchronized ImageIcon getCachedAvatar(String blogName, int avatarSize)
+    {
+        CachedAvatar avatar = avatars.get(blogName);
+        if (avatar == null || avatar.source.getWidth() < avatarSize)
+        {
+            return null;
+        }
+
+        ImageIcon icon = avatar.scaled.get(avatarSize);
+        if (icon == null)
+        {
+            icon = new ImageIcon(scaleDown(avatar.source, avatarSize));
+            avatar.scaled.put(avatarSize, icon);
+            long iconBytes = avatar.source.getWidth() == avatarSize ? 0 : pixelBytes(avatarSize, avatarSize);
+            avatar.bytes += iconBytes;
+            cachedBytes += iconBytes;
+            trim();
+        }
+        return icon;
+    }
+
+    private static synchronized void store(String blogName, BufferedImage image)
+    {
+        CachedAvatar existing = avatars.get(blogName);
+        if (existing != null && existing.source.getWidth() >= image.getWidth())
+        {
+            return;
+        }
+        if (existing != null)
+        {
+            cachedBytes -= existing.bytes;
+        }
+        CachedAvatar avatar = new CachedAvatar(image);
+        avatars.put(blogName, avatar);
+        cachedBytes += avatar.bytes;
+        trim();
+    }
+
+    private static void trim()
+    {
+        long maxBytes = MainViewGUI.prefs.getInt("AVATAR_CACHE_MAX_KB", 16 * 1024) * 1024L;
+        Iterator<CachedAvatar> eldest = avatars.values().iterator();
+        while (cachedBytes > maxBytes && avatars.size() > 1 && eldest.hasNext())
+        {
+            cachedBytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    private static long pixelBytes(int width, int height)
+    {
+        return (long) width * height * 4;
+    }
+
+    /**
+     * Scales an image down in repeated halving steps, which gives far better
+     * results than one big bilinear step for something like 512px to 16px.
+     */
+    private static BufferedImage scaleDown(BufferedImage source, int size)
+    {
+        BufferedImage current = source;
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (width == size && height == size)
+        {
+            return source;
+        }
+
+        do
+        {
+            width = Math.max(size, width / 2);
+            height = Math.max(size, height / 2);
+
+            BufferedImage step = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = step;
+        }
+        while (width > size || height > size);
+
+        return current;
+    }
+
+    private static class AvatarFetcher implements Callable<BufferedImage>
+    {
+        private final JumblrClient client;
+        private final String blogName;
+        private final int fetchSize;
+
+        AvatarFetcher(JumblrClient client, String blogName, int fetchSize)
+        {
+            this.client = client;
+            this.blogName = blogName;
+            this.fetchSize = fetchSize;
+        }
+
+        @Override
+        public BufferedImage call()
+        {
+            boolean useDisk = MainViewGUI.prefs.getBoolean("AVATAR_DISK_CACHE", true);
+            ImagePackCache diskCache = useDisk ? ImagePackCache.getInstance() : null;
+            String diskKey = "avatar:" + blogName + ":" + fetchSize; //NOI18N
+
+            try
+            {
+                //The time it was fetched goes in front of the image, so that changed avatars are picked up eventually
+                byte[] cached = diskCache != null ? diskCache.get(diskKey) : null;
+                ByteBuffer entry = cached != null && cached.length > 8 ? ByteBuffer.wrap(cached) : null;
+                byte[] bytes;
+                if (entry != null && System.currentTimeMillis() - entry.getLong() < DISK_CACHE_REFRESH_MS)
+                {
+                    bytes = Arrays.copyOfRange(cached, 8, cached.length);
+                }
+                else
+                {
+                    bytes = ImageLoader.download(new URL(client.blogAvatar(blogName, fetchSize)));
+                    if (diskCache != null)
+                    {
+                        diskCache.put(diskKey, ByteBuffer.allocate(8 + bytes.length).putLong(System.currentTimeMillis()).put(bytes).array()); //Replaces the old copy
+                    }
+                }
+                return ImageIO.read(new ByteArrayInputStream(bytes));
+            }
+            catch (IOException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.responses.ResponseWrapper;
+import com.tumblr.jumblr.types.*;
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import tumblrviewer.TumblrBackend.DisplayModes;
+
+/**
+ * Saves a local copy of a blog's posts, or of the signed in user's likes.
+ * Each post's details are appended to posts.jsonl as one JSON object per line
+ * and its photos are downloaded alongside, ARCHIVE_DOWNLOAD_THREADS at a time
+ * and no faster than ARCHIVE_MAX_KB_PER_SECOND (0 for no limit).
+ *
+ * A checkpoint is written after every page, so an archive that is stopped part
+ * way carries on from where it got to. Once an archive has reached the end,
+ * later runs start from the top again and stop as soon as they reach a whole
+ * page that is already saved, so they only fetch what is new. Photos listed
+ * in posts.jsonl that couldn't be downloaded are tried again at the start of
+ * every run.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class BlogArchiver implements Runnable
+{
+    private static final int PAGE_SIZE = 20;
+    private static final int PAGE_ATTEMPTS = 3;
+    /* End of constants*/
+    private final JumblrClient client = TumblrSession.getClient();
+    private final String blogName;
+    private final DisplayModes displayMode;
+    private final File directory;
+    private final File postsFile;
+    private final File photosDirectory;
+    private final File checkpointFile;
+    private final Listener listener;
+    private final HashSet<Long> archivedPostIds = new HashSet<>();
+    private final LinkedHashMap<File, String> missingPhotos = new LinkedHashMap<>(); //File to URL
+    private final Gson gson = new Gson();
+    private final Throttle throttle = new Throttle(MainViewGUI.prefs.getInt("ARCHIVE_MAX_KB_PER_SECOND", 0) * 1024L);
+    private int postsArchived = 0;
+    private int photosDownloaded = 0;
+    private volatile boolean cancelled = false;
+
+    /**
+     * Told how an archive is getting on. Calls are made from the archiving
+     * thread.
+     */
+    public interface Listener
+    {
+        void progress(int postsArchived, int photosDownloaded);
+
+        /**
+         * @param error null if the archive finished, otherwise what went wrong
+         */
+        void finished(Exception error);
+    }
+
+    /**
+     * @param blogName the blog to archive
+     * @param displayMode POSTS, or LIKES for the signed in user's likes
+     * @param listener told about progress
+     */
+    public BlogArchiver(String blogName, DisplayModes displayMode, Listener listener)
+    {
+        if (displayMode != DisplayModes.POSTS && displayMode != DisplayModes.LIKES)
+        {
+            throw new IllegalArgumentException("Can't archive " + displayMode); //NOI18N
+        }
+        this.blogName = blogName;
+        this.displayMode = displayMode;
+        this.listener = listener;
+        directory = getArchiveDirectory(blogName, displayMode);
+        postsFile = new File(directory, "posts.jsonl");
+        photosDirectory = new File(directory, "photos");
+        checkpointFile = new File(directory, "checkpoint.properties");
+    }
+
+    /**
+     * @return where the archive of a blog's posts or likes is kept
+     */
+    public static File getArchiveDirectory(String blogName, DisplayModes displayMode)
+    {
+        return new File(new File(MainViewGUI.getDataDirectory(), "archives"), blogName + "-" + displayMode.name().toLowerCase());
+    }
+
+    /**
+     * Stops the archive after the page it is working on. It can be carried on
+     * later.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    @Override
+    public void run()
+    {
+        ExecutorService downloadPool = Executors.newFixedThreadPool(MainViewGUI.prefs.getInt("ARCHIVE_DOWNLOAD_THREADS", 4), new DaemonThreadFactory("Archive Downloader"));
+        try
+        {
+            photosDirectory.mkdirs();
+            if (!photosDirectory.isDirectory())
+            {
+                throw new IOException("Can't create " + photosDirectory); //NOI18N
+            }
+            loadArchivedPostIds();
+            fetchMissingPhotos(downloadPool);
+            archive(downloadPool);
+            listener.finished(null);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            listener.finished(e);
+        }
+        finally
+        {
+            downloadPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads the photos of already saved posts that failed last time.
+     */
+    private void fetchMissingPhotos(ExecutorService downloadPool) throws IOException
+    {
+        ArrayList<Future<?>> downloads = new ArrayList<>();
+        for (Map.Entry<File, String> missingPhoto : missingPhotos.entrySet())
+        {
+            downloads.add(downloadPool.submit(new DownloadPhoto(missingPhoto.getValue(), missingPhoto.getKey())));
+        }
+        missingPhotos.clear();
+        awaitDownloads(downloads);
+        if (!downloads.isEmpty())
+        {
+            listener.progress(postsArchived, photosDownloaded);
+        }
+    }
+
+    private void archive(ExecutorService downloadPool) throws IOException
+    {
+        Properties checkpoint = loadCheckpoint();
+        boolean resuming = Boolean.parseBoolean(checkpoint.getProperty("inProgress"));
+        boolean completedBefore = Boolean.parseBoolean(checkpoint.getProperty("completedBefore"));
+        boolean stopAtArchived = !resuming || completedBefore; //A first archive that was stopped has to carry on to the end
+        int totalPosts = displayMode == DisplayModes.POSTS ? BlogInfoCache.get(client, blogName).getPostCount() : 0;
+
+        //Offsets move as posts are added, so posts resume from the same distance from the oldest post
+        int offset = resuming && checkpoint.getProperty("resumeFromEnd") != null ? Math.max(0, totalPosts - Integer.parseInt(checkpoint.getProperty("resumeFromEnd"))) : 0;
+        Long cursor = resuming && checkpoint.getProperty("resumeCursor") != null ? Long.valueOf(checkpoint.getProperty("resumeCursor")) : null;
+
+        try (Writer postsWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(postsFile, true), StandardCharsets.UTF_8)))
+        {
+            while (!cancelled)
+            {
+                PostPageCache.Page page = fetchPageWithRetries(offset, cursor);
+                List<Post> posts = page.getPosts();
+                if (posts.isEmpty())
+                {
+                    break;
+                }
+
+                ArrayList<Map<String, Object>> descriptions = new ArrayList<>();
+                ArrayList<Future<?>> downloads = new ArrayList<>();
+                for (Post post : posts)
+                {
+                    if (!archivedPostIds.contains(post.getId()))
+                    {
+                        descriptions.add(describe(post, downloadPool, downloads));
+                    }
+                }
+                if (descriptions.isEmpty() && stopAtArchived)
+                {
+                    break; //Caught up with the last run
+                }
+
+                //Only record the posts once their photos are saved, so stopping part way never loses a photo
+                awaitDownloads(downloads);
+                for (Map<String, Object> description : descriptions)
+                {
+                    postsWriter.write(gson.toJson(description));
+                    postsWriter.write('\n');
+                    archivedPostIds.add((Long) description.get("id"));
+                    postsArchived++;
+                }
+                postsWriter.flush();
+
+                offset += posts.size();
+                cursor = page.getNextCursor();
+                if (displayMode == DisplayModes.LIKES && cursor == null)
+                {
+                    throw new IOException("The likes cursor is missing from the API's response"); //NOI18N
+                }
+                saveCheckpoint(true, completedBefore, totalPosts - offset, cursor);
+                listener.progress(postsArchived, photosDownloaded);
+            }
+        }
+
+        if (!cancelled)
+        {
+            saveCheckpoint(false, true, 0, null);
+        }
+    }
+
+    private PostPageCache.Page fetchPageWithRetries(int offset, Long cursor) throws IOException
+    {
+        RuntimeException lastError = null;
+        for (int attempt = 0; attempt < PAGE_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                return fetchPage(offset, cursor);
+            }
+            catch (RuntimeException e)
+            {
+                lastError = e;
+            }
+        }
+        throw new IOException("Couldn't load page at " + (cursor != null ? cursor : offset), lastError); //NOI18N
+    }
+
+    private PostPageCache.Page fetchPage(int offset, Long cursor)
+    {
+        Map<String, Object> params = new HashMap<>();
+        params.put("limit", PAGE_SIZE);
+        params.put("reblog_info", true);
+        if (displayMode == DisplayModes.POSTS)
+        {
+            params.put("offset", offset);
+            return new PostPageCache.Page(client.blogPosts(blogName, params), null);
+        }
+
+        if (cursor != null)
+        {
+            params.put("before", cursor);
+        }
+        ResponseWrapper response = client.getRequestBuilder().get("/user/likes", params);
+        return new PostPageCache.Page(response.getLikedPosts(), TumblrBackend.getLastLikedTimestamp(response));
+    }
+
+    /**
+     * Works out what to save about a post and queues its photos.
+     */
+    private Map<String, Object> describe(Post post, ExecutorService downloadPool, List<Future<?>> downloads)
+    {
+        Map<String, Object> description = new LinkedHashMap<>();
+        description.put("id", post.getId());
+        description.put("blog_name", post.getBlogName());
+        description.put("type", post.getType());
+        description.put("timestamp", post.getTimestamp());
+        description.put("post_url", post.getPostUrl());
+        description.put("tags", post.getTags());
+        description.put("note_count", post.getNoteCount());
+        description.put("reblogged_from_name", post.getRebloggedFromName());
+
+        if (post instanceof PhotoPost)
+        {
+            PhotoPost photoPost = (PhotoPost) post;
+            description.put("caption", photoPost.getCaption());
+            ArrayList<Map<String, Object>> photos = new ArrayList<>();
+            int photoNumber = 0;
+            for (Photo photo : photoPost.getPhotos())
+            {
+                PhotoSize photoSize = getArchivePhotoSize(photo);
+                if (photoSize == null)
+                {
+                    continue;
+                }
+                String url = photoSize.getUrl();
+                String extension = url.substring(url.lastIndexOf('.'));
+                File photoFile = new File(photosDirectory, post.getId() + "_" + photoNumber++ + (extension.length() <= 5 ? extension : ""));
+
+                Map<String, Object> photoDescription = new LinkedHashMap<>();
+                photoDescription.put("url", url);
+                photoDescription.put("width", photoSize.getWidth());
+                photoDescription.put("height", photoSize.getHeight());
+                photoDescription.put("file", "photos/" + photoFile.getName());
+                photos.add(photoDescription);
+
+                if (!photoFile.exists())
+                {
+                    downloads.add(downloadPool.submit(new DownloadPhoto(url, photoFile)));
+                }
+            }
+            description.put("photos", photos);
+        }
+        return description;
+    }
+
+    /**
+     * @return the photo's original size, or if ARCHIVE_PHOTO_SIZE is set the
+     * smallest size at least that many pixels wide (the biggest there is if
+     * none are), or null if the photo has no sizes
+     */
+    private static PhotoSize getArchivePhotoSize(Photo photo)
+    {
+        int preferredWidth = MainViewGUI.prefs.getInt("ARCHIVE_PHOTO_SIZE", 0);
+        if (preferredWidth > 0)
+        {
+            return TumblrBackend.chooseSizeForWidth(photo, preferredWidth);
+        }
+        List<PhotoSize> sizes = photo.getSizes();
+        return sizes.isEmpty() ? null : sizes.get(0); //The first one is the fullsize photo
+    }
+
+    private void awaitDownloads(List<Future<?>> downloads) throws IOException
+    {
+        for (Future<?> download : downloads)
+        {
+            try
+            {
+                download.get();
+                photosDownloaded++;
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            catch (ExecutionException e)
+            {
+                //The post is still saved and the photo is tried again on the next run
+                System.err.println("Couldn't archive a photo: " + e.getCause().getMessage()); //NOI18N
+            }
+        }
+    }
+
+    private void loadArchivedPostIds() throws IOException
+    {
+        if (!postsFile.isFile())
+        {
+            return;
+        }
+        JsonParser parser = new JsonParser();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(postsFile), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                try
+                {
+                    JsonObject post = parser.parse(line).getAsJsonObject();
+                    archivedPostIds.add(post.get("id").getAsLong());
+                    if (post.has("photos"))
+                    {
+                        for (JsonElement photo : post.getAsJsonArray("photos"))
+                        {
+                            File photoFile = new File(directory, photo.getAsJsonObject().get("file").getAsString());
+                            if (!photoFile.exists())
+                            {
+                                missingPhotos.put(photoFile, photo.getAsJsonObject().get("url").getAsString());
+                            }
+                        }
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    //A line cut short when the last run was stopped; the post will be saved again
+                }
+            }
+        }
+    }
+
+    private Properties loadCheckpoint() throws IOException
+    {
+        Properties checkpoint = new Properties();
+        if (checkpointFile.isFile())
+        {
+            try (InputStream in = new FileInputStream(checkpointFile))
+            {
+                checkpoint.load(in);
+            }
+        }
+        return checkpoint;
+    }
+
+    private void saveCheckpoint(boolean inProgress, boolean completedBefore, int resumeFromEnd, Long resumeCursor) throws IOException
+    {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("inProgress", Boolean.toString(inProgress));
+        checkpoint.setProperty("completedBefore", Boolean.toString(completedBefore));
+        if (inProgress && resumeCursor != null)
+        {
+            checkpoint.setProperty("resumeCursor", resumeCursor.toString());
+        }
+        else if (inProgress)
+        {
+            checkpoint.setProperty("resumeFromEnd", Integer.toString(resumeFromEnd));
+        }
+
+        File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temporaryFile))
+        {
+            checkpoint.store(out, null);
+        }
+        if (!temporaryFile.renameTo(checkpointFile) && !(checkpointFile.delete() && temporaryFile.renameTo(checkpointFile)))
+        {
+            throw new IOException("Couldn't replace " + checkpointFile); //NOI18N
+        }
+    }
+
+    private class DownloadPhoto implements Callable<Void>
+    {
+        private final String url;
+        private final File photoFile;
+
+        DownloadPhoto(String url, File photoFile)
+        {
+            this.url = url;
+            this.photoFile = photoFile;
+        }
+
+        @Override
+        public Void call() throws IOException, InterruptedException
+        {
+            URL photoUrl = new URL(url);
+            File partFile = new File(photoFile.getPath() + ".part");
+            boolean saved = false;
+            ImageDownloadPool.acquireHost(photoUrl.getHost());
+            try
+            {
+                try (InputStream in = photoUrl.openStream();
+                        OutputStream out = new FileOutputStream(partFile))
+                {
+                    byte[] buffer = new byte[16 * 1024];
+                    int read;
+                    while ((read = in.read(buffer)) != -1)
+                    {
+                        out.write(buffer, 0, read);
+                        throttle.consume(read);
+                    }
+                }
+                if (!partFile.renameTo(photoFile))
+                {
+                    throw new IOException("Couldn't rename " + partFile); //NOI18N
+                }
+                saved = true;
+            }
+            finally
+            {
+                ImageDownloadPool.releaseHost(photoUrl.getHost());
+                if (!saved)
+                {
+                    partFile.delete(); //Don't leave half a photo behind
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the combined download speed of every thread under a limit by
+     * making them wait until the bytes they have read are within budget.
+     */
+    private static class Throttle
+    {
+        private final long bytesPerSecond;
+        private final long startTime = System.nanoTime();
+        private long bytesConsumed = 0;
+
+        Throttle(long bytesPerSecond)
+        {
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        void consume(int bytes) throws InterruptedException
+        {
+            if (bytesPerSecond <= 0)
+            {
+                return;
+            }
+            long waitMillis;
+            synchronized (this)
+            {
+                bytesConsumed += bytes;
+                long dueNanos = bytesConsumed * 1000000000L / bytesPerSecond;
+                waitMillis = (dueNanos - (System.nanoTime() - startTime)) / 1000000;
+            }
+            if (waitMillis > 0)
+            {
+                Thread.sleep(waitMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.types.Blog;
+import java.util.concurrent.Callable;
+
+/**
+ * Remembers blog info (title, description, post and like counts) for
+ * BLOG_INFO_CACHE_TTL_SECONDS so that the many places that want it only cost
+ * one request per blog. Simultaneous lookups of the same blog share a single
+ * request, and the least recently used blogs are dropped once there are more
+ * than BLOG_INFO_CACHE_MAX_BLOGS.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class BlogInfoCache
+{
+    private static final SharedFetchCache<String, Blog> blogs = new SharedFetchCache<>("BLOG_INFO_CACHE_TTL_SECONDS", 300, "BLOG_INFO_CACHE_MAX_BLOGS", 500);
+
+    /**
+     * Gets a blog's info, fetching it only if there isn't a fresh copy.
+     *
+     * @param client the client used if the info has to be fetched
+     * @param blogName the blog we want
+     * @return the blog's info
+     * @throws com.tumblr.jumblr.exceptions.JumblrException if the blog doesn't
+     * exist or couldn't be fetched
+     */
+    public static Blog get(final JumblrClient client, final String blogName)
+    {
+        return blogs.get(blogName, new Callable<Blog>()
+        {
+            @Override
+            public Blog call()
+            {
+                return client.blogInfo(blogName);
+            }
+        });
+    }
+
+    /**
+     * Forgets a blog's info, such as after its post count has changed.
+     *
+     * @param blogName the blog that has changed
+     */
+    public static void invalidate(String blogName)
+    {
+        blogs.invalidate(blogName);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps the compressed bytes of recently seen feed images outside the Java
+ * heap, so that images which have scrolled out of view can be decoded again
+ * without going back to the disk cache.
+ *
+ * Everything lives in one direct buffer of FEED_OFFHEAP_CACHE_MB that is
+ * written round and round like a log. Whatever is oldest gets overwritten
+ * first and an image that is read again is written back at the front, so the
+ * store never fragments and never grows.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class CompressedImageStore
+{
+    private static CompressedImageStore instance;
+    private final ByteBuffer buffer;
+    private final LinkedHashMap<String, Location> locations = new LinkedHashMap<>(); //Oldest first
+    private long written = 0; //Bytes ever written, so position in the buffer is this modulo its size
+
+    private static class Location
+    {
+        final long start;
+        final int length;
+
+        Location(long start, int length)
+        {
+            this.start = start;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Gets the process wide store, allocating it on first use.
+     *
+     * @return the store
+     */
+    public static synchronized CompressedImageStore getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new CompressedImageStore(MainViewGUI.prefs.getInt("FEED_OFFHEAP_CACHE_MB", 64) * 1024 * 1024);
+        }
+        return instance;
+    }
+
+    CompressedImageStore(int capacity)
+    {
+        buffer = ByteBuffer.allocateDirect(Math.max(capacity, 1));
+    }
+
+    /**
+     * Stores an image's bytes, unless it is too big to be worth keeping.
+     *
+     * @param url the URL of the image
+     * @param bytes its compressed bytes
+     */
+    public synchronized void put(String url, byte[] bytes)
+    {
+        int capacity = buffer.capacity();
+        if (bytes.length > capacity / 4)
+        {
+            return;
+        }
+        locations.remove(url);
+
+        int position = (int) (written % capacity);
+        if (position + bytes.length > capacity)
+        {
+            written += capacity - position; //Images don't wrap around the end, so skip what's left of it
+            position = 0;
+        }
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(bytes);
+        locations.put(url, new Location(written, bytes.length));
+        written += bytes.length;
+
+        Iterator<Location> oldest = locations.values().iterator();
+        while (oldest.hasNext() && oldest.next().start < written - capacity)
+        {
+            oldest.remove(); //Written over
+        }
+    }
+
+    /**
+     * Gets an image's bytes if they are still in the store.
+     *
+     * @param url the URL of the image
+     * @return its compressed bytes, or null if they aren't here
+     */
+    public synchronized byte[] get(String url)
+    {
+        Location location = locations.get(url);
+        if (location == null)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[location.length];
+        ByteBuffer source = buffer.duplicate();
+        source.position((int) (location.start % buffer.capacity()));
+        source.get(bytes);
+
+        if (location.start < written - buffer.capacity() / 2)
+        {
+            put(url, bytes); //Getting old, so move it to the front before it is written over
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.swing.Icon;
+import javax.swing.SwingUtilities;
+
+/**
+ * Keeps count of the decoded pixels held by every window (feeds and post
+ * viewers alike) and makes the windows give up the ones that were viewed
+ * longest ago once they add up to more than DECODED_IMAGE_BUDGET_MB, or
+ * when the heap is still nearly full after a garbage collection. An evicted
+ * image is simply decoded again the next time it is needed.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class DecodedImageGovernor
+{
+    private static DecodedImageGovernor instance;
+    private final LinkedHashMap<Map.Entry<Holder, Object>, Decoded> decodedImages = new LinkedHashMap<>(64, 0.75f, true); //Least recently viewed first
+    private final HashMap<Holder, Long> bytesByHolder = new HashMap<>();
+    private long usedBytes = 0;
+
+    /**
+     * Something that holds decoded images, such as a window.
+     */
+    public interface Holder
+    {
+        /**
+         * Told on the EDT to drop a decoded image. It has already been
+         * released.
+         *
+         * @param key the key the image was registered under
+         * @param image the image to drop, in case the key has since been given
+         * a new one
+         */
+        void evictDecodedImage(Object key, Object image);
+    }
+
+    private static class Decoded
+    {
+        final WeakReference<Object> image;
+        final long bytes;
+
+        Decoded(Object image, long bytes)
+        {
+            this.image = new WeakReference<>(image);
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Gets the process wide governor, starting to watch the heap on first
+     * use.
+     *
+     * @return the governor
+     */
+    public static synchronized DecodedImageGovernor getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new DecodedImageGovernor();
+            instance.watchGarbageCollections();
+        }
+        return instance;
+    }
+
+    /**
+     * Works out how much memory an icon's pixels take.
+     *
+     * @param icon the icon
+     * @return its size in bytes
+     */
+    public static long getDecodedBytes(Icon icon)
+    {
+        long pixels = (long) icon.getIconWidth() * icon.getIconHeight();
+        if (icon instanceof AnimatedGifIcon)
+        {
+            pixels *= ((AnimatedGifIcon) icon).getFrames().images.length;
+        }
+        return pixels * 4; //ARGB
+    }
+
+    /**
+     * Starts counting a decoded image, evicting others if that takes us over
+     * budget.
+     *
+     * @param holder what holds the image
+     * @param key what the holder knows the image by
+     * @param image the decoded image
+     * @param bytes how much memory it takes
+     */
+    public synchronized void register(Holder holder, Object key, Object image, long bytes)
+    {
+        release(holder, key);
+        decodedImages.put(new AbstractMap.SimpleImmutableEntry<>(holder, key), new Decoded(image, bytes));
+        addBytes(holder, bytes);
+        evictDownTo(getBudgetBytes(), 1); //Never the one just added
+    }
+
+    /**
+     * Notes that an image has been looked at, so it is evicted later.
+     */
+    public synchronized void viewed(Holder holder, Object key)
+    {
+        decodedImages.get(new AbstractMap.SimpleImmutableEntry<>(holder, key));
+    }
+
+    /**
+     * Stops counting an image the holder has dropped itself.
+     */
+    public synchronized void release(Holder holder, Object key)
+    {
+        Decoded decoded = decodedImages.remove(new AbstractMap.SimpleImmutableEntry<>(holder, key));
+        if (decoded != null)
+        {
+            addBytes(holder, -decoded.bytes);
+        }
+    }
+
+    /**
+     * Stops counting everything a holder has, such as when its window closes.
+     */
+    public synchronized void releaseAll(Holder holder)
+    {
+        Iterator<Map.Entry<Map.Entry<Holder, Object>, Decoded>> images = decodedImages.entrySet().iterator();
+        while (images.hasNext())
+        {
+            if (images.next().getKey().getKey() == holder)
+            {
+                images.remove();
+            }
+        }
+        bytesByHolder.remove(holder);
+        usedBytes = 0;
+        for (long bytes : bytesByHolder.values())
+        {
+            usedBytes += bytes;
+        }
+    }
+
+    /**
+     * Evicts half of what is decoded, for when memory has run short.
+     */
+    public synchronized void relieveMemoryPressure()
+    {
+        evictDownTo(usedBytes / 2, 0);
+    }
+
+    /**
+     * @return the bytes of decoded pixels held by every window together
+     */
+    public synchronized long getUsedBytes()
+    {
+        return usedBytes;
+    }
+
+    /**
+     * @param holder a window or other holder
+     * @return the bytes of decoded pixels it holds
+     */
+    public synchronized long getUsedBytes(Holder holder)
+    {
+        Long bytes = bytesByHolder.get(holder);
+        return bytes != null ? bytes : 0;
+    }
+
+    /**
+     * @return how many bytes of decoded pixels may be held before the least
+     * recently viewed are evicted
+     */
+    public long getBudgetBytes()
+    {
+        return MainViewGUI.prefs.getInt("DECODED_IMAGE_BUDGET_MB", 256) * 1024L * 1024L;
+    }
+
+    private void addBytes(Holder holder, long bytes)
+    {
+        Long holderBytes = bytesByHolder.get(holder);
+        long newHolderBytes = (holderBytes != null ? holderBytes : 0) + bytes;
+        if (newHolderBytes > 0)
+        {
+            bytesByHolder.put(holder, newHolderBytes);
+        }
+        else
+        {
+            bytesByHolder.remove(holder);
+        }
+        usedBytes += bytes;
+    }
+
+    private void evictDownTo(long targetBytes, int keepNewest)
+    {
+        Iterator<Map.Entry<Map.Entry<Holder, Object>, Decoded>> leastRecentlyViewed = decodedImages.entrySet().iterator();
+        int evictable = decodedImages.size() - keepNewest;
+        while (usedBytes > targetBytes && evictable-- > 0)
+        {
+            Map.Entry<Map.Entry<Holder, Object>, Decoded> image = leastRecentlyViewed.next();
+            leastRecentlyViewed.remove();
+            final Holder holder = image.getKey().getKey();
+            final Object key = image.getKey().getValue();
+            final Object decodedImage = image.getValue().image.get();
+            addBytes(holder, -image.getValue().bytes);
+            if (decodedImage != null)
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        holder.evictDecodedImage(key, decodedImage);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Asks to be told when the old generation is still over
+     * DECODED_IMAGE_GC_PRESSURE_PERCENT full straight after a collection,
+     * which means the heap is close to running out.
+     */
+    private void watchGarbageCollections()
+    {
+        int pressurePercent = MainViewGUI.prefs.getInt("DECODED_IMAGE_GC_PRESSURE_PERCENT", 80);
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            //Only the old generation supports both; survivor spaces are often nearly full after a collection anyway
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() && pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0)
+            {
+                pool.setCollectionUsageThreshold(pool.getUsage().getMax() * pressurePercent / 100);
+            }
+        }
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(new NotificationListener()
+        {
+            @Override
+            public void handleNotification(Notification notification, Object handback)
+            {
+                if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()))
+                {
+                    relieveMemoryPressure();
+                }
+            }
+        }, null, null);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.types.Photo;
+import com.tumblr.jumblr.types.PhotoSize;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Spots photos that have already been shown in a feed, even when a reblog has
+ * given them a different URL, by comparing difference hashes (dHash) worked
+ * out from the smallest size of each photo. Photos whose hashes differ in no
+ * more than DUPLICATE_HASH_DISTANCE bits are treated as the same.
+ *
+ * Hashes are kept in plain long arrays, both per feed and in the process wide
+ * URL to hash table, so hundreds of thousands of photos only cost a few MB.
+ * To avoid comparing against every photo shown so far, each feed's hashes
+ * are split into DUPLICATE_HASH_DISTANCE + 1 bands and bucketed by each
+ * band's value. Two hashes that differ in no more than that many bits must
+ * have at least one band exactly the same, so only the photos sharing a
+ * bucket with the new one need to be compared.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class DuplicatePhotoFilter
+{
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    private static final long EMPTY = 0; //The FNV hash of a URL is never 0 in practice
+    /* End of constants*/
+    private static long[] knownUrlHashes = new long[4096];
+    private static long[] knownPhotoHashes = new long[4096];
+    private static int knownCount = 0;
+    private final int maxDistance = Math.max(0, Math.min(MainViewGUI.prefs.getInt("DUPLICATE_HASH_DISTANCE", 4), 63));
+    private final int bandCount = maxDistance + 1;
+    private long[] shownHashes = new long[256];
+    private FeedView.Entry[] shownEntries = new FeedView.Entry[256];
+    private int shownCount = 0;
+    private int[][] bucketHeads = new int[bandCount][]; //Index of the newest hash in each bucket, plus one so 0 is empty
+    private int[][] nextInBucket = new int[bandCount][]; //Index of the next older hash in the same bucket, plus one
+
+    /**
+     * Works out the perceptual hash of a photo from its smallest size,
+     * downloading it if needed.
+     *
+     * @param photo the photo
+     * @return its hash
+     * @throws IOException if the photo couldn't be downloaded or decoded
+     */
+    public static long getHash(Photo photo) throws IOException
+    {
+        PhotoSize smallest = getSmallestSize(photo);
+        if (smallest == null)
+        {
+            throw new IOException("The photo has no sizes"); //NOI18N
+        }
+
+        long urlHash = fnv1a(smallest.getUrl());
+        Long knownHash = getKnownHash(urlHash);
+        if (knownHash != null)
+        {
+            return knownHash;
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(ImageLoader.load(new URL(smallest.getUrl())).getBytes()));
+        if (image == null)
+        {
+            throw new IOException("Can't decode " + smallest.getUrl()); //NOI18N
+        }
+        long hash = differenceHash(image);
+        putKnownHash(urlHash, hash);
+        return hash;
+    }
+
+    /**
+     * Gets the perceptual hash of a photo only if it has already been worked
+     * out, such as while the page was being read ahead.
+     *
+     * @param photo the photo
+     * @return its hash, or null if it would have to be downloaded
+     */
+    public static Long getHashIfKnown(Photo photo)
+    {
+        PhotoSize smallest = getSmallestSize(photo);
+        return smallest != null ? getKnownHash(fnv1a(smallest.getUrl())) : null;
+    }
+
+    /**
+     * @param photo the photo
+     * @return the URL of the size its hash is worked out from, or null if it
+     * has no sizes
+     */
+    public static String getHashUrl(Photo photo)
+    {
+        PhotoSize smallest = getSmallestSize(photo);
+        return smallest != null ? smallest.getUrl() : null;
+    }
+
+    private static PhotoSize getSmallestSize(Photo photo)
+    {
+        PhotoSize smallest = null;
+        for (PhotoSize photoSize : photo.getSizes())
+        {
+            if (smallest == null || photoSize.getWidth() < smallest.getWidth())
+            {
+                smallest = photoSize;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Each bit says whether a pixel is brighter than the one to its right in
+     * a 9x8 greyscale copy, which survives rescaling and recompression.
+     */
+    private static long differenceHash(BufferedImage image)
+    {
+        BufferedImage small = new BufferedImage(HASH_WIDTH, HASH_HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = small.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(image, 0, 0, HASH_WIDTH, HASH_HEIGHT, null);
+        g.dispose();
+
+        int[] pixels = small.getRaster().getPixels(0, 0, HASH_WIDTH, HASH_HEIGHT, (int[]) null);
+        long hash = 0;
+        for (int y = 0; y < HASH_HEIGHT; y++)
+        {
+            for (int x = 0; x < HASH_WIDTH - 1; x++)
+            {
+                hash <<= 1;
+                if (pixels[y * HASH_WIDTH + x] > pixels[y * HASH_WIDTH + x + 1])
+                {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Finds a photo already shown in this feed that looks the same, or else
+     * remembers this one as shown.
+     *
+     * @param hash the photo's hash
+     * @param entry the feed entry that would show it
+     * @return the entry already showing the same photo, or null if this one
+     * is new
+     */
+    public synchronized FeedView.Entry findOrAdd(long hash, FeedView.Entry entry)
+    {
+        int index = indexOf(hash);
+        if (index >= 0)
+        {
+            return shownEntries[index];
+        }
+
+        if (shownCount == shownHashes.length)
+        {
+            shownHashes = Arrays.copyOf(shownHashes, shownCount * 2);
+            shownEntries = Arrays.copyOf(shownEntries, shownCount * 2);
+        }
+        if (nextInBucket[0] == null || nextInBucket[0].length < shownHashes.length)
+        {
+            rebuildBuckets();
+        }
+        shownHashes[shownCount] = hash;
+        shownEntries[shownCount] = entry;
+        addToBuckets(shownCount);
+        shownCount++;
+        return null;
+    }
+
+    /**
+     * @param hash a photo's hash
+     * @return true if a photo that looks the same has been shown
+     */
+    public synchronized boolean contains(long hash)
+    {
+        return indexOf(hash) >= 0;
+    }
+
+    /**
+     * @return the index of the first shown hash within maxDistance bits, or
+     * -1 if there is none
+     */
+    private int indexOf(long hash)
+    {
+        if (shownCount == 0)
+        {
+            return -1;
+        }
+        int found = -1;
+        int mask = bucketHeads[0].length - 1;
+        for (int band = 0; band < bandCount; band++)
+        {
+            for (int i = bucketHeads[band][getBucket(hash, band, mask)] - 1; i >= 0; i = nextInBucket[band][i] - 1)
+            {
+                if ((found < 0 || i < found) && Long.bitCount(shownHashes[i] ^ hash) <= maxDistance)
+                {
+                    found = i;
+                }
+            }
+        }
+        return found;
+    }
+
+    private int getBucket(long hash, int band, int mask)
+    {
+        int start = band * 64 / bandCount;
+        int width = (band + 1) * 64 / bandCount - start;
+        long value = width == 64 ? hash : (hash >>> start) & ((1L << width) - 1);
+        long mixed = value * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private void addToBuckets(int index)
+    {
+        int mask = bucketHeads[0].length - 1;
+        for (int band = 0; band < bandCount; band++)
+        {
+            int bucket = getBucket(shownHashes[index], band, mask);
+            nextInBucket[band][index] = bucketHeads[band][bucket];
+            bucketHeads[band][bucket] = index + 1;
+        }
+    }
+
+    /**
+     * Sizes the buckets to the hash array, which keeps them no more than
+     * half full, and puts every shown hash back in them.
+     */
+    private void rebuildBuckets()
+    {
+        for (int band = 0; band < bandCount; band++)
+        {
+            bucketHeads[band] = new int[shownHashes.length * 2];
+            nextInBucket[band] = new int[shownHashes.length];
+        }
+        for (int i = 0; i < shownCount; i++)
+        {
+            addToBuckets(i);
+        }
+    }
+
+    private static long fnv1a(String url)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : url.getBytes(StandardCharsets.UTF_8))
+        {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static synchronized Long getKnownHash(long urlHash)
+    {
+        int mask = knownUrlHashes.length - 1;
+        for (int slot = (int) (urlHash ^ (urlHash >>> 32)) & mask; knownUrlHashes[slot] != EMPTY; slot = (slot + 1) & mask)
+        {
+            if (knownUrlHashes[slot] == urlHash)
+            {
+                return knownPhotoHashes[slot];
+            }
+        }
+        return null;
+    }
+
+    private static synchronized void putKnownHash(long urlHash, long photoHash)
+    {
+        if ((knownCount + 1) * 2 > knownUrlHashes.length)
+        {
+            long[] oldUrlHashes = knownUrlHashes;
+            long[] oldPhotoHashes = knownPhotoHashes;
+            knownUrlHashes = new long[oldUrlHashes.length * 2];
+            knownPhotoHashes = new long[oldPhotoHashes.length * 2];
+            knownCount = 0;
+            for (int i = 0; i < oldUrlHashes.length; i++)
+            {
+                if (oldUrlHashes[i] != EMPTY)
+                {
+                    putKnownHash(oldUrlHashes[i], oldPhotoHashes[i]);
+                }
+            }
+        }
+
+        int mask = knownUrlHashes.length - 1;
+        int slot = (int) (urlHash ^ (urlHash >>> 32)) & mask;
+        while (knownUrlHashes[slot] != EMPTY && knownUrlHashes[slot] != urlHash)
+        {
+            slot = (slot + 1) & mask;
+        }
+        if (knownUrlHashes[slot] == EMPTY)
+        {
+            knownCount++;
+        }
+        knownUrlHashes[slot] = urlHash;
+        knownPhotoHashes[slot] = photoHash;
+    }
+}
@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.types.Photo;
+import com.tumblr.jumblr.types.PhotoPost;
+import com.tumblr.jumblr.types.PhotoSize;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.IOException;
+import java.net.URL;
+import java.util.*;
+import java.util.List;
+import javax.swing.*;
+
+/**
+ * The scrolling list of photos in the main view. Only the rows in and near
+ * the viewport hold decoded images; every other row is just a lightweight
+ * record of its post and size, and gets decoded again (normally from the disk
+ * cache) when it scrolls back into view. This keeps the heap roughly constant
+ * however far the user scrolls.
+ *
+ * Decoded images are counted by the DecodedImageGovernor, which may ask for
+ * the least recently viewed ones back when memory is short.
+ *
+ * The compressed bytes of rows that have scrolled out of the window are kept
+ * off the heap in the CompressedImageStore, so scrolling back only costs a
+ * decode.
+ *
+ * Photos are shrunk to fit the width of the viewport (up to
+ * PHOTO_MAX_DISPLAY_WIDTH) but never enlarged. When the window is made wider,
+ * rows are switched to a bigger size of their photo as they are next loaded.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class FeedView extends JComponent implements DecodedImageGovernor.Holder
+{
+    private static final long serialVersionUID = 1L;
+    private static final Color PLACEHOLDER_COLOR = new Color(0, 0, 0, 20);
+    private static final Color BADGE_COLOR = new Color(0, 0, 0, 160);
+    private static final int BADGE_PADDING = 4;
+    /* End of constants*/
+    private final ArrayList<Entry> allEntries = new ArrayList<>();
+    private final ArrayList<Entry> entries = new ArrayList<>(); //The ones that match the filter
+    private Set<Long> filterPostIds = null;
+    private int[] rowTops = new int[64];
+    private int totalHeight = 0;
+    private int maxWidth = 0;
+    private volatile int columnWidth = TumblrBackend.PHOTO_PREFERRED_SIZE;
+    private volatile double screenScale = 1; //Device pixels per pixel on HiDPI screens
+    private final HashMap<Entry, Icon> decodedIcons = new HashMap<>();
+    private final HashSet<Entry> pendingLoads = new HashSet<>();
+    private volatile int windowFirst = 0;
+    private volatile int windowLast = -1;
+    private final EntryClickListener entryClickListener;
+
+    /**
+     * The lightweight record kept for every photo in the feed.
+     */
+    public static class Entry
+    {
+        volatile String url;
+        final PhotoPost photoPost;
+        final int photoNumberInPost;
+        int row;
+        int width; //Of the size of the photo being loaded, in pixels
+        int height;
+        int displayHeight; //Of its row
+        int duplicateCount; //Other copies of the photo collapsed into this one
+
+        public Entry(String url, PhotoPost photoPost, int photoNumberInPost, int width, int height)
+        {
+            this.url = url;
+            this.photoPost = photoPost;
+            this.photoNumberInPost = photoNumberInPost;
+            this.width = width > 0 ? width : TumblrBackend.PHOTO_PREFERRED_SIZE;
+            this.height = height > 0 ? height : this.width;
+        }
+
+        public PhotoPost getPhotoPost()
+        {
+            return photoPost;
+        }
+
+        public int getPhotoNumberInPost()
+        {
+            return photoNumberInPost;
+        }
+
+        Photo getPhoto()
+        {
+            return photoPost.getPhotos().get(photoNumberInPost);
+        }
+    }
+
+    /**
+     * Told when the user clicks on a photo in the feed.
+     */
+    public interface EntryClickListener
+    {
+        void entryClicked(Entry entry);
+    }
+
+    public FeedView(EntryClickListener entryClickListener)
+    {
+        this.entryClickListener = entryClickListener;
+        setAlignmentX(Component.CENTER_ALIGNMENT);
+        ToolTipManager.sharedInstance().registerComponent(this);
+        addHierarchyBoundsListener(new HierarchyBoundsAdapter()
+        {
+            @Override
+            public void ancestorResized(HierarchyEvent e)
+            {
+                updateColumnWidth();
+            }
+        });
+        addMouseListener(new MouseAdapter()
+        {
+            @Override
+            public void mousePressed(MouseEvent e)
+            {
+                Entry entry = entryAt(e.getPoint());
+                if (entry != null)
+                {
+                    FeedView.this.entryClickListener.entryClicked(entry);
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds photos to the end of the feed. Must be called on the EDT.
+     *
+     * @param newEntries the photos to add, in order
+     */
+    public void addEntries(List<Entry> newEntries)
+    {
+        for (Entry entry : newEntries)
+        {
+            allEntries.add(entry);
+            entry.row = -1;
+            if (filterPostIds == null || filterPostIds.contains(entry.photoPost.getId()))
+            {
+                addRow(entry);
+            }
+        }
+        revalidate();
+        repaint();
+    }
+
+    private void addRow(Entry entry)
+    {
+        if (entries.size() == rowTops.length)
+        {
+            rowTops = Arrays.copyOf(rowTops, rowTops.length * 2);
+        }
+        entry.row = entries.size();
+        rowTops[entry.row] = totalHeight;
+        entries.add(entry);
+        entry.displayHeight = getDisplayHeight(entry);
+        totalHeight += entry.displayHeight;
+        maxWidth = Math.max(maxWidth, getDisplayWidth(entry));
+    }
+
+    private int getDisplayWidth(Entry entry)
+    {
+        return (int) Math.min(Math.round(entry.width / screenScale), columnWidth);
+    }
+
+    private int getDisplayHeight(Entry entry)
+    {
+        return (int) Math.round((double) entry.height * getDisplayWidth(entry) / entry.width);
+    }
+
+    /**
+     * @return how many pixels wide a photo has to be to fill the feed
+     */
+    public int getNeededPhotoWidth()
+    {
+        return (int) Math.ceil(columnWidth * screenScale);
+    }
+
+    @Override
+    public void addNotify()
+    {
+        super.addNotify();
+        updateColumnWidth();
+    }
+
+    private void updateColumnWidth()
+    {
+        JViewport viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        if (viewport == null || viewport.getWidth() == 0)
+        {
+            return;
+        }
+        int newColumnWidth = Math.min(viewport.getWidth(), MainViewGUI.prefs.getInt("PHOTO_MAX_DISPLAY_WIDTH", 1280));
+        double newScreenScale = getGraphicsConfiguration() != null ? getGraphicsConfiguration().getDefaultTransform().getScaleX() : 1;
+        if (newColumnWidth != columnWidth || newScreenScale != screenScale)
+        {
+            columnWidth = newColumnWidth;
+            screenScale = newScreenScale;
+            rebuildRows();
+        }
+    }
+
+    /**
+     * Switches an entry to a bigger size of its photo if the one it has
+     * doesn't fill the feed any more.
+     *
+     * @return true if it was switched
+     */
+    private boolean upgradePhotoSize(Entry entry)
+    {
+        int neededWidth = getNeededPhotoWidth();
+        if (entry.width >= neededWidth)
+        {
+            return false;
+        }
+        PhotoSize photoSize = TumblrBackend.choosePhotoSize(entry.getPhoto(), neededWidth);
+        if (photoSize == null || photoSize.getWidth() <= entry.width)
+        {
+            return false; //There isn't a bigger one
+        }
+        entry.url = photoSize.getUrl();
+        entry.width = photoSize.getWidth();
+        entry.height = photoSize.getHeight() > 0 ? photoSize.getHeight() : entry.height;
+        return true;
+    }
+
+    /**
+     * Counts another copy of a photo rather than showing it again. Must be
+     * called on the EDT.
+     *
+     * @param entry the entry showing the photo
+     */
+    public void addDuplicate(Entry entry)
+    {
+        entry.duplicateCount++;
+        if (entry.row >= 0)
+        {
+            repaintRow(entry);
+        }
+    }
+
+    /**
+     * Takes a photo out of the feed, closing up the gap its row leaves. Must
+     * be called on the EDT.
+     *
+     * @param entry the entry to take out
+     */
+    public void removeEntry(Entry entry)
+    {
+        int index = allEntries.lastIndexOf(entry); //Usually one of the newest
+        if (index < 0)
+        {
+            return;
+        }
+        allEntries.remove(index);
+        if (decodedIcons.remove(entry) != null)
+        {
+            DecodedImageGovernor.getInstance().release(this, entry);
+        }
+        if (entry.row >= 0)
+        {
+            int row = entry.row;
+            entries.remove(row);
+            entry.row = -1;
+            int top = rowTops[row];
+            for (int i = row; i < entries.size(); i++)
+            {
+                entries.get(i).row = i;
+                rowTops[i] = top;
+                top += entries.get(i).displayHeight;
+            }
+            totalHeight = top;
+            windowLast = -1; //The rows have moved, so work the window out again on the next paint
+            revalidate();
+            repaint();
+        }
+    }
+
+    /**
+     * Only shows the photos from some posts. Must be called on the EDT.
+     *
+     * @param postIds the posts to show, or null to show everything
+     */
+    public void setFilter(Set<Long> postIds)
+    {
+        filterPostIds = postIds != null ? new HashSet<>(postIds) : null;
+        rebuildRows();
+    }
+
+    /**
+     * Lets more posts through the filter without rebuilding the rows already
+     * shown, such as new posts that match the search. Must be called on the
+     * EDT before their photos are added.
+     *
+     * @param postIds the posts to also show
+     */
+    public void addToFilter(Collection<Long> postIds)
+    {
+        if (filterPostIds != null)
+        {
+            filterPostIds.addAll(postIds);
+        }
+    }
+
+    private void rebuildRows()
+    {
+        entries.clear();
+        totalHeight = 0;
+        maxWidth = 0;
+        for (Entry entry : allEntries)
+        {
+            entry.row = -1;
+            if (filterPostIds == null || filterPostIds.contains(entry.photoPost.getId()))
+            {
+                addRow(entry);
+            }
+        }
+        windowFirst = 0;
+        windowLast = -1; //Work the window out again on the next paint
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * @return how many photos are in the feed
+     */
+    public int getEntryCount()
+    {
+        return allEntries.size();
+    }
+
+    @Override
+    public Dimension getPreferredSize()
+    {
+        return new Dimension(maxWidth, totalHeight);
+    }
+
+    @Override
+    public Dimension getMaximumSize()
+    {
+        return getPreferredSize();
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e)
+    {
+        Entry entry = entryAt(e.getPoint());
+        if (entry == null || entry.photoPost.getBlogName().isEmpty())
+        {
+            return null;
+        }
+        return entry.photoPost.getBlogName();
+    }
+
+    private int rowAt(int y)
+    {
+        int row = Arrays.binarySearch(rowTops, 0, entries.size(), y);
+        return row >= 0 ? row : -row - 2;
+    }
+
+    private Entry entryAt(Point point)
+    {
+        int row = rowAt(point.y);
+        if (row < 0 || row >= entries.size())
+        {
+            return null;
+        }
+        Entry entry = entries.get(row);
+        int left = (getWidth() - getDisplayWidth(entry)) / 2;
+        return point.x >= left && point.x < left + getDisplayWidth(entry) ? entry : null;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        updateDecodedWindow();
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null || entries.isEmpty())
+        {
+            return;
+        }
+        int first = Math.max(0, rowAt(clip.y));
+        int last = Math.min(entries.size() - 1, rowAt(clip.y + clip.height));
+        for (int row = first; row <= last; row++)
+        {
+            Entry entry = entries.get(row);
+            int width = getDisplayWidth(entry);
+            int x = (getWidth() - width) / 2;
+            Icon icon = decodedIcons.get(entry);
+            if (icon != null)
+            {
+                paintScaled(g, icon, x, rowTops[row], width, entry.displayHeight);
+                DecodedImageGovernor.getInstance().viewed(this, entry);
+            }
+            else
+            {
+                g.setColor(PLACEHOLDER_COLOR);
+                g.fillRect(x, rowTops[row], width, entry.displayHeight);
+            }
+            if (entry.duplicateCount > 0)
+            {
+                paintDuplicateBadge(g, entry, x + width, rowTops[row]);
+            }
+        }
+    }
+
+    private void paintScaled(Graphics g, Icon icon, int x, int y, int width, int height)
+    {
+        if (icon.getIconWidth() == width && icon.getIconHeight() == height)
+        {
+            icon.paintIcon(this, g, x, y);
+            return;
+        }
+        if (icon instanceof AnimatedGifIcon)
+        {
+            ((AnimatedGifIcon) icon).paintIcon(this, g, x, y, width, height);
+            return;
+        }
+        Graphics2D scaled = (Graphics2D) g.create();
+        scaled.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        scaled.translate(x, y);
+        scaled.scale((double) width / icon.getIconWidth(), (double) height / icon.getIconHeight());
+        icon.paintIcon(this, scaled, 0, 0);
+        scaled.dispose();
+    }
+
+    private void repaintRow(Entry entry)
+    {
+        repaint((getWidth() - getDisplayWidth(entry)) / 2, rowTops[entry.row], getDisplayWidth(entry), entry.displayHeight);
+    }
+
+    private void paintDuplicateBadge(Graphics g, Entry entry, int right, int top)
+    {
+        String text = "\u00d7" + (entry.duplicateCount + 1); //NOI18N
+        FontMetrics metrics = g.getFontMetrics();
+        int width = metrics.stringWidth(text) + BADGE_PADDING * 2;
+        int height = metrics.getHeight() + BADGE_PADDING;
+        int left = right - width - BADGE_PADDING;
+        top += BADGE_PADDING;
+        g.setColor(BADGE_COLOR);
+        g.fillRoundRect(left, top, width, height, height / 2, height / 2);
+        g.setColor(Color.WHITE);
+        g.drawString(text, left + BADGE_PADDING, top + BADGE_PADDING / 2 + metrics.getAscent());
+    }
+
+    /**
+     * Works out which rows are in or near the viewport, throws away the
+     * decoded images for everything else and starts loading anything missing.
+     */
+    private void updateDecodedWindow()
+    {
+        Rectangle visible = getVisibleRect();
+        if (entries.isEmpty() || visible.height == 0)
+        {
+            return;
+        }
+        int margin = visible.height * MainViewGUI.prefs.getInt("FEED_DECODED_MARGIN_SCREENS", 2);
+        int centre = Math.max(0, rowAt(visible.y + visible.height / 2));
+        int first = Math.max(0, rowAt(visible.y - margin));
+        int last = Math.min(entries.size() - 1, rowAt(visible.y + visible.height + margin));
+        if (first == windowFirst && last == windowLast)
+        {
+            return;
+        }
+        windowFirst = first;
+        windowLast = last;
+
+        Iterator<Entry> decoded = decodedIcons.keySet().iterator();
+        while (decoded.hasNext())
+        {
+            Entry entry = decoded.next();
+            if (!isInWindow(entry))
+            {
+                decoded.remove();
+                DecodedImageGovernor.getInstance().release(this, entry);
+            }
+        }
+
+        for (int row = first; row <= last; row++)
+        {
+            Entry entry = entries.get(row);
+            if (upgradePhotoSize(entry))
+            {
+                decodedIcons.remove(entry);
+                DecodedImageGovernor.getInstance().release(this, entry);
+                updateRowHeight(entry);
+            }
+            if (!decodedIcons.containsKey(entry) && pendingLoads.add(entry))
+            {
+                ImageDownloadPool.execute(new LoadEntryImage(entry), Math.abs(row - centre), entry.url); //Nearest the middle of the screen first
+            }
+        }
+    }
+
+    @Override
+    public void evictDecodedImage(Object key, Object image)
+    {
+        Entry entry = (Entry) key;
+        if (decodedIcons.get(entry) == image)
+        {
+            decodedIcons.remove(entry);
+            if (isInWindow(entry))
+            {
+                windowLast = -1; //So updateDecodedWindow queues it again
+                repaintRow(entry);
+            }
+        }
+    }
+
+    @Override
+    public void removeNotify()
+    {
+        super.removeNotify();
+        decodedIcons.clear(); //The window has closed
+        DecodedImageGovernor.getInstance().releaseAll(this);
+        windowFirst = 0;
+        windowLast = -1;
+    }
+
+    private boolean isInWindow(Entry entry)
+    {
+        return entry.row >= 0 && entry.row >= windowFirst && entry.row <= windowLast;
+    }
+
+    private void imageLoaded(Entry entry, String url, Icon icon, boolean retry)
+    {
+        pendingLoads.remove(entry);
+        if (!isInWindow(entry))
+        {
+            return; //Scrolled away while it was loading
+        }
+        if (!url.equals(entry.url))
+        {
+            //Switched to a bigger size while the old one was loading
+            pendingLoads.add(entry);
+            ImageDownloadPool.execute(new LoadEntryImage(entry), 0, entry.url);
+            return;
+        }
+        if (icon == null)
+        {
+            if (retry)
+            {
+                windowLast = -1; //So updateDecodedWindow queues it again
+                repaintRow(entry);
+            }
+            return;
+        }
+        decodedIcons.put(entry, icon);
+        DecodedImageGovernor.getInstance().register(this, entry, icon, DecodedImageGovernor.getDecodedBytes(icon));
+
+        if (icon.getIconWidth() != entry.width || icon.getIconHeight() != entry.height)
+        {
+            //The size we were told was wrong
+            entry.width = icon.getIconWidth();
+            entry.height = icon.getIconHeight();
+        }
+        updateRowHeight(entry);
+    }
+
+    /**
+     * Moves everything below a row if its height has changed, or else just
+     * repaints it.
+     */
+    private void updateRowHeight(Entry entry)
+    {
+        int displayHeight = getDisplayHeight(entry);
+        int heightChange = displayHeight - entry.displayHeight;
+        maxWidth = Math.max(maxWidth, getDisplayWidth(entry));
+        if (heightChange == 0)
+        {
+            repaintRow(entry);
+            return;
+        }
+        entry.displayHeight = displayHeight;
+        for (int i = entry.row + 1; i < entries.size(); i++)
+        {
+            rowTops[i] += heightChange;
+        }
+        totalHeight += heightChange;
+        revalidate();
+        repaint();
+    }
+
+    private class LoadEntryImage implements Runnable
+    {
+        private final Entry entry;
+        private final String url;
+        private boolean retry = false;
+
+        LoadEntryImage(Entry entry)
+        {
+            this.entry = entry;
+            this.url = entry.url;
+        }
+
+        @Override
+        public void run()
+        {
+            Icon icon = null;
+            try
+            {
+                if (isDisplayable() && isInWindow(entry))
+                {
+                    icon = loadIcon();
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                //Leave the placeholder
+            }
+            catch (OutOfMemoryError e)
+            {
+                DecodedImageGovernor governor = DecodedImageGovernor.getInstance();
+                retry = governor.getUsedBytes() > 0; //Only worth trying again if there was something to give back
+                governor.relieveMemoryPressure();
+            }
+            finally
+            {
+                final Icon loadedIcon = icon;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        imageLoaded(entry, url, loadedIcon, retry); //Always, so the row can be loaded again
+                    }
+                });
+            }
+        }
+
+        private Icon loadIcon() throws IOException
+        {
+            CompressedImageStore store = CompressedImageStore.getInstance();
+            byte[] stored = store.get(url);
+            ImageLoader.LoadedImage image;
+            if (stored != null)
+            {
+                image = ImageLoader.fromBytes(url, stored);
+            }
+            else
+            {
+                image = ImageLoader.load(new URL(url));
+                store.put(url, image.getBytes());
+            }
+            return image.createIcon(getNeededPhotoWidth(), Integer.MAX_VALUE);
+        }
+    }
+}
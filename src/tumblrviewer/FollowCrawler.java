@@ -0,0 +1,511 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps a complete list of blogs (such as everyone the user follows).
+ *
+ * The list is saved to disk so that it can be shown straight away on the next
+ * launch, and is then brought up to date in the background by reading from
+ * the newest end until blogs we already know about turn up. Every
+ * FOLLOW_FULL_SYNC_HOURS, or whenever the counts stop adding up, the whole
+ * list is crawled again by requesting its pages concurrently.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class FollowCrawler
+{
+    /**
+     * The most records the API will return in one request.
+     */
+    static final int PAGE_SIZE = 20;
+    private static final int PAGE_ATTEMPTS = 3;
+    private static final long HOUR_MS = 60L * 60 * 1000;
+    /* End of constants*/
+    private static ExecutorService crawlPool;
+    private final PageSource pageSource;
+    private final int totalCount;
+    private final File snapshotFile;
+    private LinkedHashSet<String> names = new LinkedHashSet<>();
+    private long lastFullSync = 0;
+    private boolean complete = false;
+    private boolean refreshing = false;
+    private final ArrayList<Listener> listeners = new ArrayList<>();
+
+    /**
+     * Gets one page of blog names, newest first.
+     */
+    public interface PageSource
+    {
+        List<String> fetchPage(int offset, int limit);
+    }
+
+    /**
+     * Told about the list as it arrives. Calls are made from background
+     * threads.
+     */
+    public interface Listener
+    {
+        /**
+         * @param newNames the next names in the list
+         * @param loadedCount how many names have been delivered so far
+         * @param completeList the whole list once it has finished loading,
+         * otherwise null
+         */
+        void namesArrived(List<String> newNames, int loadedCount, Collection<String> completeList);
+
+        /**
+         * Called when a background refresh has changed a list that had
+         * already been delivered in full.
+         *
+         * @param completeList the new list
+         */
+        void listReplaced(Collection<String> completeList);
+    }
+
+    /**
+     * @param pageSource where pages of the list come from
+     * @param totalCount how long the API says the list is
+     * @param snapshotFile where the list is kept between runs, or null to
+     * not keep it
+     */
+    public FollowCrawler(PageSource pageSource, int totalCount, File snapshotFile)
+    {
+        this.pageSource = pageSource;
+        this.totalCount = totalCount;
+        this.snapshotFile = snapshotFile;
+    }
+
+    /**
+     * Loads the saved list if there is one and starts bringing it up to date
+     * in the background.
+     */
+    public void start()
+    {
+        if (!loadSnapshot())
+        {
+            new Crawl(true).start();
+            return;
+        }
+
+        synchronized (this)
+        {
+            complete = true;
+            refreshing = true;
+            notifyAll();
+        }
+        long fullSyncInterval = MainViewGUI.prefs.getInt("FOLLOW_FULL_SYNC_HOURS", 24) * HOUR_MS;
+        if (System.currentTimeMillis() - lastFullSync > fullSyncInterval)
+        {
+            new Crawl(false).start();
+        }
+        else
+        {
+            getCrawlPool().execute(new IncrementalSync());
+        }
+    }
+
+    private static synchronized ExecutorService getCrawlPool()
+    {
+        if (crawlPool == null)
+        {
+            crawlPool = Executors.newFixedThreadPool(MainViewGUI.prefs.getInt("FOLLOW_CRAWL_THREADS", 4), new DaemonThreadFactory("Follow Crawler"));
+        }
+        return crawlPool;
+    }
+
+    /**
+     * Adds a listener. It is immediately told about everything that has
+     * already arrived, and is dropped again once the list is complete and
+     * up to date.
+     *
+     * @param listener the listener to add
+     */
+    public synchronized void addListener(Listener listener)
+    {
+        if (!complete || refreshing)
+        {
+            listeners.add(listener);
+        }
+        listener.namesArrived(new ArrayList<>(names), names.size(), complete ? new LinkedHashSet<>(names) : null);
+    }
+
+    /**
+     * Waits for the whole list to load.
+     *
+     * @return every name in the list
+     */
+    public synchronized Collection<String> getAll()
+    {
+        awaitComplete();
+        return new LinkedHashSet<>(names);
+    }
+
+    /**
+     * Checks if a name is in the list, waiting only until it turns up or the
+     * list has finished loading.
+     *
+     * @param name the name to look for
+     * @return true if it is in the list
+     */
+    public synchronized boolean contains(String name)
+    {
+        while (!names.contains(name) && !complete)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return names.contains(name);
+    }
+
+    /**
+     * Puts a name at the start of the list once it has loaded, like the API
+     * would after following a blog.
+     *
+     * @param name the name to add
+     */
+    public synchronized void addFirst(String name)
+    {
+        awaitComplete();
+        LinkedHashSet<String> reordered = new LinkedHashSet<>();
+        reordered.add(name);
+        reordered.addAll(names);
+        names = reordered;
+        saveSnapshot();
+    }
+
+    /**
+     * Removes a name from the list once it has loaded.
+     *
+     * @param name the name to remove
+     */
+    public synchronized void remove(String name)
+    {
+        awaitComplete();
+        names.remove(name);
+        saveSnapshot();
+    }
+
+    private void awaitComplete()
+    {
+        while (!complete)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swaps in the list produced by a background refresh.
+     */
+    private synchronized void refreshFinished(LinkedHashSet<String> newNames, long fullSyncTime)
+    {
+        boolean changed = !new ArrayList<>(newNames).equals(new ArrayList<>(names));
+        names = newNames;
+        lastFullSync = fullSyncTime;
+        refreshing = false;
+        saveSnapshot();
+
+        if (changed)
+        {
+            for (Listener listener : listeners)
+            {
+                listener.listReplaced(new LinkedHashSet<>(names));
+            }
+        }
+        listeners.clear();
+        notifyAll();
+    }
+
+    private boolean loadSnapshot()
+    {
+        if (snapshotFile == null || !snapshotFile.isFile())
+        {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(snapshotFile), StandardCharsets.UTF_8)))
+        {
+            String header = reader.readLine();
+            if (header == null)
+            {
+                return false;
+            }
+            long savedFullSync = Long.parseLong(header);
+            LinkedHashSet<String> savedNames = new LinkedHashSet<>();
+            String name;
+            while ((name = reader.readLine()) != null)
+            {
+                if (!name.isEmpty())
+                {
+                    savedNames.add(name);
+                }
+            }
+            synchronized (this)
+            {
+                names = savedNames;
+                lastFullSync = savedFullSync;
+            }
+            return true;
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            return false; //Unreadable so just crawl again
+        }
+    }
+
+    private synchronized void saveSnapshot()
+    {
+        if (snapshotFile == null)
+        {
+            return;
+        }
+        File temporaryFile = new File(snapshotFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), StandardCharsets.UTF_8)))
+        {
+            writer.write(Long.toString(lastFullSync));
+            writer.write('\n');
+            for (String name : names)
+            {
+                writer.write(name);
+                writer.write('\n');
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't save " + snapshotFile + ": " + e.getMessage()); //NOI18N
+            return;
+        }
+        //Replace it in one go so a crash never leaves half a list behind
+        if (!temporaryFile.renameTo(snapshotFile) && !(snapshotFile.delete() && temporaryFile.renameTo(snapshotFile)))
+        {
+            System.err.println("Couldn't replace " + snapshotFile); //NOI18N
+        }
+    }
+
+    private List<String> fetchPageWithRetries(int pageIndex)
+    {
+        for (int attempt = 0; attempt < PAGE_ATTEMPTS; attempt++)
+        {
+            try
+            {
+                return pageSource.fetchPage(pageIndex * PAGE_SIZE, PAGE_SIZE);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Couldn't load page " + pageIndex + ": " + e.getMessage()); //NOI18N
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads from the newest end of the list until it reaches a blog we
+     * already know about, then puts anything new at the front. Unfollows
+     * can't be seen this way, so if the count doesn't match afterwards the
+     * whole list is crawled again instead.
+     */
+    private class IncrementalSync implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            LinkedHashSet<String> known;
+            long knownFullSync;
+            synchronized (FollowCrawler.this)
+            {
+                known = new LinkedHashSet<>(names);
+                knownFullSync = lastFullSync;
+            }
+
+            LinkedHashSet<String> newNames = new LinkedHashSet<>();
+            for (int pageIndex = 0;; pageIndex++)
+            {
+                List<String> page = fetchPageWithRetries(pageIndex);
+                if (page == null)
+                {
+                    refreshFinished(known, knownFullSync); //Try again next time
+                    return;
+                }
+
+                boolean reachedKnown = false;
+                for (String name : page)
+                {
+                    if (known.contains(name))
+                    {
+                        reachedKnown = true;
+                        break;
+                    }
+                    newNames.add(name);
+                }
+                if (reachedKnown || page.size() < PAGE_SIZE)
+                {
+                    break;
+                }
+            }
+
+            newNames.addAll(known);
+            if (newNames.size() != totalCount)
+            {
+                new Crawl(false).start();
+            }
+            else
+            {
+                refreshFinished(newNames, knownFullSync);
+            }
+        }
+    }
+
+    /**
+     * Fetches every page of the list concurrently. Pages are put together in
+     * order as soon as every page before them has arrived. The first crawl
+     * streams them to the listeners so menus can fill in while the rest is
+     * still loading, whereas a background refresh swaps the whole list in
+     * once it has finished.
+     */
+    private class Crawl
+    {
+        private final boolean streaming;
+        private final int pageCount = (totalCount / PAGE_SIZE) + 1;
+        private final ArrayList<List<String>> pages = new ArrayList<>(Collections.<List<String>>nCopies(pageCount, null));
+        private final LinkedHashSet<String> crawledNames = new LinkedHashSet<>();
+        private int deliveredPages = 0;
+        private boolean pageFailed = false;
+
+        Crawl(boolean streaming)
+        {
+            this.streaming = streaming;
+        }
+
+        void start()
+        {
+            ExecutorService pool = getCrawlPool();
+            for (int i = 0; i < pageCount; i++)
+            {
+                pool.execute(new FetchPage(i));
+            }
+        }
+
+        private void pageArrived(int pageIndex, List<String> pageNames)
+        {
+            ArrayList<String> newNames = new ArrayList<>();
+            boolean finished;
+            synchronized (this)
+            {
+                pages.set(pageIndex, pageNames);
+                while (deliveredPages < pageCount && pages.get(deliveredPages) != null)
+                {
+                    for (String name : pages.get(deliveredPages))
+                    {
+                        if (crawledNames.add(name)) //Offsets can shift mid crawl so skip repeats
+                        {
+                            newNames.add(name);
+                        }
+                    }
+                    pages.set(deliveredPages, Collections.<String>emptyList()); //Free it
+                    deliveredPages++;
+                }
+                finished = deliveredPages == pageCount;
+            }
+
+            if (!streaming)
+            {
+                if (finished && pageFailed)
+                {
+                    synchronized (FollowCrawler.this)
+                    {
+                        refreshFinished(names, lastFullSync); //Don't lose blogs over one bad page
+                    }
+                }
+                else if (finished)
+                {
+                    refreshFinished(crawledNames, System.currentTimeMillis());
+                }
+                return;
+            }
+
+            synchronized (FollowCrawler.this)
+            {
+                names.addAll(newNames);
+                if (finished)
+                {
+                    complete = true;
+                    lastFullSync = System.currentTimeMillis();
+                    saveSnapshot();
+                }
+                else if (newNames.isEmpty())
+                {
+                    return;
+                }
+
+                Collection<String> completeList = finished ? new LinkedHashSet<>(names) : null;
+                for (Listener listener : listeners)
+                {
+                    listener.namesArrived(newNames, names.size(), completeList);
+                }
+                if (finished)
+                {
+                    listeners.clear();
+                }
+                FollowCrawler.this.notifyAll();
+            }
+        }
+
+        private class FetchPage implements Runnable
+        {
+            private final int pageIndex;
+
+            FetchPage(int pageIndex)
+            {
+                this.pageIndex = pageIndex;
+            }
+
+            @Override
+            public void run()
+            {
+                List<String> pageNames = fetchPageWithRetries(pageIndex);
+                if (pageNames == null)
+                {
+                    synchronized (Crawl.this)
+                    {
+                        pageFailed = true;
+                    }
+                    pageNames = Collections.emptyList();
+                }
+                pageArrived(pageIndex, pageNames);
+            }
+        }
+    }
+}
@@ -16,103 +16,115 @@
  */
 package tumblrviewer;
 
-import com.sun.imageio.plugins.gif.GIFImageMetadata;
-import com.sun.imageio.plugins.gif.GIFImageReader;
-import java.awt.Image;
-import java.awt.image.ImageObserver;
-import static java.awt.image.ImageObserver.FRAMEBITS;
-import java.io.IOException;
-import java.net.URL;
-import javax.imageio.ImageIO;
-import javax.imageio.stream.ImageInputStream;
-import javax.swing.JLabel;
-
 /**
- * A couple of classes used to ensure GIF's which have their time delay set to
- * zero can still be displayed and animated correctly without using 100% CPU.
+ * Used to spot GIF's which have their time delay set to zero, as the toolkit
+ * would animate them using 100% CPU. The GifAnimationEngine clamps their delay
+ * instead when it can decode them.
  *
  * @author jonathan
  */
 public class GIFzeroTimedWorkaround
 {
-    private static final long FRAME_DELAY_MS = 100;
-
     /**
-     * Checks if a GIF's delay time between frames is set to zero or not (which 
+     * Checks if a GIF's delay time between frames is set to zero or not (which
      * causes problems)
-     * @param url the URL of the GIF to check
+     *
+     * @param imageBytes the bytes of the image to check
      * @return true if the GIF is zero timed, false if not a GIF or GIF is okay
      */
-    @SuppressWarnings(
+    public static boolean isZeroTimedGif(byte[] imageBytes)
     {
-        "BroadCatchBlock", "TooBroadCatch"
-    })
-    public static boolean isZeroTimedGif(URL url)
+        return new ZeroTimedGifSniffer().inspect(imageBytes, imageBytes.length) != ZeroTimedGifSniffer.NOT_ZERO_TIMED;
+    }
+
+    /**
+     * Finds the first frame's delay time from the start of a GIF, so that it
+     * can be run against the bytes of an image while it is still downloading.
+     */
+    public static class ZeroTimedGifSniffer
     {
-        if (!url.getFile().toLowerCase().endsWith("gif"))
-        {
-            //Immediately exclude non-GIFs
-            return false;
-        }
+        static final int UNDECIDED = 0;
+        static final int ZERO_TIMED = 1;
+        static final int NOT_ZERO_TIMED = 2;
+        private static final int HEADER_BYTES = 13;
+        private int result = UNDECIDED;
 
-        try
+        /**
+         * Inspects the bytes received so far. Once a decision has been made
+         * it will not change.
+         *
+         * @param buffer the start of the image
+         * @param length how many bytes of buffer are valid
+         * @return UNDECIDED if more bytes are needed, otherwise ZERO_TIMED or
+         * NOT_ZERO_TIMED
+         */
+        public int inspect(byte[] buffer, int length)
         {
-            // Read the delay time for the first frame in the animated gif
-            GIFImageReader reader = (GIFImageReader) ImageIO.getImageReadersByFormatName("GIF").next();
-            ImageInputStream iis = ImageIO.createImageInputStream(url.openStream());
-            reader.setInput(iis);
-            GIFImageMetadata md = (GIFImageMetadata) reader.getImageMetadata(0);
-
-            reader.dispose();
-            iis.close();
-
-            if (md.delayTime == 0)
+            if (result == UNDECIDED)
             {
-                return true;
+                result = parse(buffer, length);
             }
+            return result;
         }
-        catch (Exception e)
-        {
-            return true; //Play it safe - something went wrong
-        }
-        return false;
-    }
 
-    /**
-     * Set this as the ImageObserver to workaround zero time delayed GIFs.
-     * It will make them play back at a sensible speed again by pausing for a 
-     * set delay time between updates.
-     */
-    public static class ImageObserverWorkaround implements ImageObserver
-    {
-        private final JLabel imageLabel;
-
-        public ImageObserverWorkaround(JLabel imageLabel)
+        /**
+         * @return true if the image has been found to be a zero timed GIF
+         */
+        public boolean isZeroTimed()
         {
-            this.imageLabel = imageLabel;
+            return result == ZERO_TIMED;
         }
 
-        @Override
-        public boolean imageUpdate(Image img, int infoflags, int x, int y, int width, int height)
+        private static int parse(byte[] buffer, int length)
         {
-            imageLabel.repaint();
-            if ((infoflags & FRAMEBITS) == 0)
+            if (length < HEADER_BYTES)
+            {
+                return UNDECIDED;
+            }
+            if (buffer[0] != 'G' || buffer[1] != 'I' || buffer[2] != 'F')
+            {
+                return NOT_ZERO_TIMED; //Immediately exclude non-GIFs
+            }
+
+            int position = HEADER_BYTES;
+            int packedFields = buffer[10] & 0xff;
+            if ((packedFields & 0x80) != 0)
             {
-                return true;
+                position += 3 << ((packedFields & 0x07) + 1); //Skip the global colour table
             }
-            else
+
+            while (position < length)
             {
-                try
+                int blockType = buffer[position] & 0xff;
+                if (blockType == 0x2c || blockType == 0x3b)
+                {
+                    return ZERO_TIMED; //Got to the first image without a delay time
+                }
+                if (blockType != 0x21 || position + 1 >= length)
                 {
-                    //Make the frame wait 100ms like browsers by do in this situation by sleeping the thread
-                    //TODO: Sometimes thread's seem to join when the image is viewed in two different JFrame's simultaneously and then this get's applied twice slowing the image down twice as much - not a major issue but needs looking into why it's happening (inconsistent sometimes it's fine and this doesn't happen at all)
-                    Thread.sleep(FRAME_DELAY_MS);
+                    return blockType == 0x21 ? UNDECIDED : ZERO_TIMED; //Play it safe - something went wrong
                 }
-                catch (InterruptedException ex)
+
+                if ((buffer[position + 1] & 0xff) == 0xf9)
+                {
+                    //Graphic control extension: size, packed fields, then the delay time in little endian
+                    if (position + 6 > length)
+                    {
+                        return UNDECIDED;
+                    }
+                    int delayTime = (buffer[position + 4] & 0xff) | ((buffer[position + 5] & 0xff) << 8);
+                    return delayTime == 0 ? ZERO_TIMED : NOT_ZERO_TIMED;
+                }
+
+                //Any other extension - skip over its sub-blocks
+                position += 2;
+                while (position < length && buffer[position] != 0)
                 {
+                    position += (buffer[position] & 0xff) + 1;
                 }
+                position++;
             }
-            return true;
+            return UNDECIDED;
         }
     }
 }
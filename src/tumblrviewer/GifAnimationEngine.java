@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.awt.AlphaComposite;
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.Timer;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Decodes animated GIFs into frames once and then drives every animated icon
+ * on screen from a single shared Swing timer. This replaces the AWT image
+ * producer animation, which sleeps inside the shared image fetcher threads
+ * between frames.
+ *
+ * All of the animation state is derived from the time since a GIF was decoded,
+ * so the same GIF shown in two windows stays in step and costs nothing extra.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class GifAnimationEngine
+{
+    private static final int TICK_MS = 20;
+    private static final int MINIMUM_FRAME_DELAY_MS = 20;
+    private static final int ZERO_FRAME_DELAY_MS = 100; //What browsers use when the delay is (nearly) zero
+    private static final String GIF_IMAGE_METADATA_FORMAT = "javax_imageio_gif_image_1.0"; //NOI18N
+    private static final String GIF_STREAM_METADATA_FORMAT = "javax_imageio_gif_stream_1.0"; //NOI18N
+    /* End of constants*/
+    private static final HashMap<String, WeakReference<Frames>> decodedGifs = new HashMap<>();
+    private static final WeakHashMap<Component, ArrayList<Registration>> animatedComponents = new WeakHashMap<>();
+    private static Timer timer;
+
+    /**
+     * The decoded frames of a GIF, each one fully composited onto the
+     * canvas, along with when each frame finishes.
+     */
+    static class Frames
+    {
+        final BufferedImage[] images;
+        final int[] frameEndTimes;
+        final int totalDuration;
+        final long startTime = System.currentTimeMillis();
+
+        Frames(BufferedImage[] images, int[] delays)
+        {
+            this.images = images;
+            this.frameEndTimes = new int[delays.length];
+            int time = 0;
+            for (int i = 0; i < delays.length; i++)
+            {
+                time += delays[i];
+                frameEndTimes[i] = time;
+            }
+            this.totalDuration = time;
+        }
+
+        int currentFrame(long now)
+        {
+            int time = (int) ((now - startTime) % totalDuration);
+            int frame = Arrays.binarySearch(frameEndTimes, time);
+            return frame >= 0 ? frame + 1 : -frame - 1;
+        }
+    }
+
+    private static class Registration
+    {
+        final AnimatedGifIcon icon;
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+        int paintedFrame;
+
+        Registration(AnimatedGifIcon icon, int x, int y, int width, int height, int paintedFrame)
+        {
+            this.icon = icon;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+            this.paintedFrame = paintedFrame;
+        }
+    }
+
+    /**
+     * Gets the decoded frames for an animated GIF, decoding it only if it
+     * isn't already on screen somewhere else.
+     *
+     * @param key something that identifies the GIF such as its URL
+     * @param bytes the GIF file
+     * @return the frames, or null if this isn't an animated GIF that we can
+     * decode
+     */
+    static Frames getFrames(String key, byte[] bytes)
+    {
+        synchronized (decodedGifs)
+        {
+            WeakReference<Frames> reference = decodedGifs.get(key);
+            Frames frames = reference != null ? reference.get() : null;
+            if (frames != null)
+            {
+                return frames;
+            }
+        }
+
+        Frames frames;
+        try
+        {
+            frames = decode(bytes);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return null; //Malformed GIF - let the caller fall back to the toolkit
+        }
+        if (frames == null)
+        {
+            return null;
+        }
+
+        synchronized (decodedGifs)
+        {
+            Iterator<WeakReference<Frames>> references = decodedGifs.values().iterator();
+            while (references.hasNext())
+            {
+                if (references.next().get() == null)
+                {
+                    references.remove();
+                }
+            }
+            decodedGifs.put(key, new WeakReference<>(frames));
+        }
+        return frames;
+    }
+
+    private static Frames decode(byte[] bytes) throws IOException
+    {
+        ImageReader reader = ImageIO.getImageReadersByFormatName("gif").next(); //NOI18N
+        try (ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)))
+        {
+            reader.setInput(iis, false);
+            int frameCount = reader.getNumImages(true);
+            if (frameCount < 2)
+            {
+                return null; //Not animated
+            }
+
+            Node screen = child(reader.getStreamMetadata().getAsTree(GIF_STREAM_METADATA_FORMAT), "LogicalScreenDescriptor"); //NOI18N
+            int width = intAttribute(screen, "logicalScreenWidth"); //NOI18N
+            int height = intAttribute(screen, "logicalScreenHeight"); //NOI18N
+            BufferedImage first = reader.read(0);
+            width = Math.max(width, first.getWidth());
+            height = Math.max(height, first.getHeight());
+
+            long maxBytes = MainViewGUI.prefs.getInt("GIF_MAX_DECODED_MB", 64) * 1024L * 1024L;
+            if ((long) frameCount * width * height * 4 > maxBytes)
+            {
+                return null;
+            }
+
+            BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            BufferedImage[] images = new BufferedImage[frameCount];
+            int[] delays = new int[frameCount];
+            for (int i = 0; i < frameCount; i++)
+            {
+                BufferedImage frame = i == 0 ? first : reader.read(i);
+                IIOMetadata metadata = reader.getImageMetadata(i);
+                Node tree = metadata.getAsTree(GIF_IMAGE_METADATA_FORMAT);
+                Node descriptor = child(tree, "ImageDescriptor"); //NOI18N
+                Node control = child(tree, "GraphicControlExtension"); //NOI18N
+                int x = intAttribute(descriptor, "imageLeftPosition"); //NOI18N
+                int y = intAttribute(descriptor, "imageTopPosition"); //NOI18N
+                String disposal = control != null ? attribute(control, "disposalMethod") : "none"; //NOI18N
+                int delay = control != null ? intAttribute(control, "delayTime") * 10 : 0; //NOI18N
+
+                BufferedImage previous = "restoreToPrevious".equals(disposal) ? copy(canvas) : null; //NOI18N
+
+                Graphics2D g = canvas.createGraphics();
+                g.drawImage(frame, x, y, null);
+                g.dispose();
+                images[i] = copy(canvas);
+                delays[i] = delay <= 10 ? ZERO_FRAME_DELAY_MS : Math.max(delay, MINIMUM_FRAME_DELAY_MS);
+
+                if ("restoreToBackgroundColor".equals(disposal)) //NOI18N
+                {
+                    g = canvas.createGraphics();
+                    g.setComposite(AlphaComposite.Clear);
+                    g.fillRect(x, y, frame.getWidth(), frame.getHeight());
+                    g.dispose();
+                }
+                else if (previous != null)
+                {
+                    canvas = previous;
+                }
+            }
+            return new Frames(images, delays);
+        }
+        finally
+        {
+            reader.dispose();
+        }
+    }
+
+    private static BufferedImage copy(BufferedImage image)
+    {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = copy.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return copy;
+    }
+
+    private static Node child(Node node, String name)
+    {
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+        {
+            if (child.getNodeName().equals(name))
+            {
+                return child;
+            }
+        }
+        return null;
+    }
+
+    private static String attribute(Node node, String name)
+    {
+        NamedNodeMap attributes = node.getAttributes();
+        Node attribute = attributes != null ? attributes.getNamedItem(name) : null;
+        return attribute != null ? attribute.getNodeValue() : null;
+    }
+
+    private static int intAttribute(Node node, String name)
+    {
+        String value = node != null ? attribute(node, name) : null;
+        return value != null ? Integer.parseInt(value) : 0;
+    }
+
+    /**
+     * Called from an icon's paint method (so always on the EDT) to make sure
+     * the area it was painted in gets repainted when the frame changes. A
+     * component can hold any number of animated icons.
+     */
+    static void painted(Component component, AnimatedGifIcon icon, int x, int y, int width, int height, int frame)
+    {
+        ArrayList<Registration> registrations = animatedComponents.get(component);
+        if (registrations == null)
+        {
+            registrations = new ArrayList<>();
+            animatedComponents.put(component, registrations);
+        }
+
+        boolean found = false;
+        for (Registration registration : registrations)
+        {
+            if (registration.icon == icon && registration.x == x && registration.y == y && registration.width == width && registration.height == height)
+            {
+                registration.paintedFrame = frame;
+                found = true;
+                break;
+            }
+        }
+        if (!found)
+        {
+            registrations.add(new Registration(icon, x, y, width, height, frame));
+        }
+
+        if (timer == null)
+        {
+            timer = new Timer(TICK_MS, new TickActionListener());
+            timer.setCoalesce(true);
+        }
+        if (!timer.isRunning())
+        {
+            timer.start();
+        }
+    }
+
+    private static class TickActionListener implements ActionListener
+    {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Component, ArrayList<Registration>>> entries = animatedComponents.entrySet().iterator();
+            while (entries.hasNext())
+            {
+                Map.Entry<Component, ArrayList<Registration>> entry = entries.next();
+                Component component = entry.getKey();
+                if (component == null || !component.isShowing())
+                {
+                    entries.remove(); //It will register again if it gets painted
+                    continue;
+                }
+
+                //Repaint whatever has moved on a frame. The registration is dropped and
+                //the repaint adds it back, so icons that are no longer painted disappear
+                Iterator<Registration> registrations = entry.getValue().iterator();
+                while (registrations.hasNext())
+                {
+                    Registration registration = registrations.next();
+                    if (registration.icon.getFrames().currentFrame(now) != registration.paintedFrame)
+                    {
+                        registrations.remove();
+                        component.repaint(registration.x, registration.y, registration.width, registration.height);
+                    }
+                }
+                if (entry.getValue().isEmpty())
+                {
+                    entries.remove();
+                }
+            }
+
+            if (animatedComponents.isEmpty())
+            {
+                timer.stop();
+            }
+        }
+    }
+}
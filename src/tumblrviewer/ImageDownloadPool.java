@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A bounded pool that downloads images in parallel. Jobs are run in priority
+ * order (lowest number first) so that the photos nearest the viewport are
+ * fetched before ones further away and before any read ahead, and no more
+ * than IMAGE_DOWNLOADS_PER_HOST downloads ever hit the same host at once.
+ *
+ * Jobs are queued by the host they download from and a job is only taken
+ * off its queue once its host has a free connection, so a pool thread never
+ * sits waiting for one. The connection is counted for the whole job; other
+ * threads wait for theirs in acquireHost.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class ImageDownloadPool
+{
+    /**
+     * The priority used for speculative downloads such as read ahead.
+     */
+    public static final int PREFETCH_PRIORITY = Integer.MAX_VALUE;
+    private static final long IDLE_TIMEOUT_MS = 30 * 1000;
+    /* End of constants*/
+    private static final Object lock = new Object();
+    private static final HashMap<String, PriorityQueue<PrioritisedJob>> queuesByHost = new HashMap<>();
+    private static final HashMap<String, Integer> downloadsByHost = new HashMap<>();
+    private static final ThreadLocal<String> jobHost = new ThreadLocal<>(); //The host already counted for this pool thread's job
+    private static final DaemonThreadFactory threadFactory = new DaemonThreadFactory("Image Downloader");
+    private static long submissionCounter = 0;
+    private static int queuedJobs = 0;
+    private static int workers = 0;
+    private static int idleWorkers = 0;
+
+    private static class PrioritisedJob implements Runnable, Comparable<PrioritisedJob>
+    {
+        private final Runnable job;
+        private final int priority;
+        private final String host;
+        private final long submissionNumber = submissionCounter++; //Only made while holding the lock
+
+        PrioritisedJob(Runnable job, int priority, String host)
+        {
+            this.job = job;
+            this.priority = priority;
+            this.host = host;
+        }
+
+        @Override
+        public void run()
+        {
+            job.run();
+        }
+
+        @Override
+        public int compareTo(PrioritisedJob other)
+        {
+            if (priority != other.priority)
+            {
+                return Integer.compare(priority, other.priority);
+            }
+            return Long.compare(submissionNumber, other.submissionNumber); //First come first served
+        }
+    }
+
+    /**
+     * Queues a job that downloads images.
+     *
+     * @param job the job to run
+     * @param priority lower numbers are run first
+     * @param url the URL the job downloads, so that it is only started once
+     * that host has a free connection
+     */
+    public static void execute(Runnable job, int priority, String url)
+    {
+        String host = getHost(url);
+        synchronized (lock)
+        {
+            PriorityQueue<PrioritisedJob> queue = queuesByHost.get(host);
+            if (queue == null)
+            {
+                queue = new PriorityQueue<>();
+                queuesByHost.put(host, queue);
+            }
+            queue.add(new PrioritisedJob(job, priority, host));
+            queuedJobs++;
+            if (idleWorkers > 0)
+            {
+                lock.notifyAll();
+            }
+            else if (workers < MainViewGUI.prefs.getInt("IMAGE_DOWNLOAD_THREADS", 8))
+            {
+                workers++;
+                threadFactory.newThread(new Worker()).start();
+            }
+        }
+    }
+
+    private static String getHost(String url)
+    {
+        try
+        {
+            return url != null ? new URL(url).getHost() : "";
+        }
+        catch (MalformedURLException e)
+        {
+            return ""; //It will fail without connecting to anything
+        }
+    }
+
+    /**
+     * Takes the most urgent job whose host has a free connection, counting
+     * the connection as used. Must hold the lock.
+     *
+     * @return the job or null if none can be run yet
+     */
+    private static PrioritisedJob takeRunnableJob()
+    {
+        PriorityQueue<PrioritisedJob> mostUrgent = null;
+        for (Map.Entry<String, PriorityQueue<PrioritisedJob>> hostQueue : queuesByHost.entrySet())
+        {
+            if (hasFreeConnection(hostQueue.getKey()) && (mostUrgent == null || hostQueue.getValue().peek().compareTo(mostUrgent.peek()) < 0))
+            {
+                mostUrgent = hostQueue.getValue();
+            }
+        }
+        if (mostUrgent == null)
+        {
+            return null;
+        }
+        PrioritisedJob job = mostUrgent.poll();
+        if (mostUrgent.isEmpty())
+        {
+            queuesByHost.remove(job.host);
+        }
+        queuedJobs--;
+        addDownload(job.host, 1);
+        return job;
+    }
+
+    private static class Worker implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                PrioritisedJob job;
+                while ((job = awaitJob()) != null)
+                {
+                    jobHost.set(job.host);
+                    try
+                    {
+                        job.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        System.err.println("Image download job failed: " + e); //NOI18N
+                    }
+                    finally
+                    {
+                        jobHost.remove();
+                        synchronized (lock)
+                        {
+                            addDownload(job.host, -1);
+                            lock.notifyAll();
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                synchronized (lock)
+                {
+                    workers--;
+                }
+            }
+        }
+
+        /**
+         * @return the next job to run, or null once there has been nothing
+         * queued for IDLE_TIMEOUT_MS
+         */
+        private PrioritisedJob awaitJob()
+        {
+            synchronized (lock)
+            {
+                long idleSince = System.currentTimeMillis();
+                PrioritisedJob job;
+                while ((job = takeRunnableJob()) == null)
+                {
+                    long idleFor = System.currentTimeMillis() - idleSince;
+                    if (queuedJobs == 0 && idleFor >= IDLE_TIMEOUT_MS)
+                    {
+                        return null;
+                    }
+                    idleWorkers++;
+                    try
+                    {
+                        lock.wait(Math.max(1, IDLE_TIMEOUT_MS - idleFor));
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return null;
+                    }
+                    finally
+                    {
+                        idleWorkers--;
+                    }
+                }
+                return job;
+            }
+        }
+    }
+
+    /**
+     * Waits until we are allowed another connection to a host. Every call
+     * must be followed by a call to releaseHost. A pool job's own host has
+     * already been counted so it never waits for that.
+     *
+     * @param host the host about to be downloaded from
+     * @throws InterruptedException if interrupted while waiting
+     */
+    static void acquireHost(String host) throws InterruptedException
+    {
+        if (host.equals(jobHost.get()))
+        {
+            return;
+        }
+        synchronized (lock)
+        {
+            while (!hasFreeConnection(host))
+            {
+                lock.wait();
+            }
+            addDownload(host, 1);
+        }
+    }
+
+    static void releaseHost(String host)
+    {
+        if (host.equals(jobHost.get()))
+        {
+            return;
+        }
+        synchronized (lock)
+        {
+            addDownload(host, -1);
+            lock.notifyAll();
+        }
+    }
+
+    private static boolean hasFreeConnection(String host)
+    {
+        Integer downloads = downloadsByHost.get(host);
+        return downloads == null || host.isEmpty() || downloads < MainViewGUI.prefs.getInt("IMAGE_DOWNLOADS_PER_HOST", 4);
+    }
+
+    private static void addDownload(String host, int change)
+    {
+        Integer downloads = downloadsByHost.get(host);
+        int newDownloads = (downloads != null ? downloads : 0) + change;
+        if (newDownloads > 0)
+        {
+            downloadsByHost.put(host, newDownloads);
+        }
+        else
+        {
+            downloadsByHost.remove(host);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+
+/**
+ * The single path through which the feed and the post viewer get their images.
+ * Each image is downloaded once into a buffer (or read from the disk cache)
+ * and the GIF delay check runs on the first bytes as they arrive, so the same
+ * bytes are then handed to the decoder without a second request.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class ImageLoader
+{
+    private static final int DOWNLOAD_BUFFER_BYTES = 16 * 1024;
+    /* End of constants*/
+    private static final ConcurrentHashMap<String, FutureTask<LoadedImage>> downloadsInFlight = new ConcurrentHashMap<>();
+
+    /**
+     * An image's encoded bytes along with what we found out while fetching
+     * them.
+     */
+    public static class LoadedImage
+    {
+        private final String url;
+        private final byte[] bytes;
+        private final boolean zeroTimedGif;
+
+        LoadedImage(String url, byte[] bytes, boolean zeroTimedGif)
+        {
+            this.url = url;
+            this.bytes = bytes;
+            this.zeroTimedGif = zeroTimedGif;
+        }
+
+        public byte[] getBytes()
+        {
+            return bytes;
+        }
+
+        public boolean isZeroTimedGif()
+        {
+            return zeroTimedGif;
+        }
+
+        /**
+         * Creates an icon for the image. Animated GIFs are handed to the
+         * GifAnimationEngine rather than being animated by the toolkit.
+         *
+         * @return the icon to display
+         */
+        public Icon createIcon()
+        {
+            if (isGif())
+            {
+                GifAnimationEngine.Frames frames = GifAnimationEngine.getFrames(url, bytes);
+                if (frames != null)
+                {
+                    return new AnimatedGifIcon(frames);
+                }
+                if (zeroTimedGif)
+                {
+                    //The toolkit would spin through the frames at full speed so just show the first one
+                    try
+                    {
+                        BufferedImage firstFrame = ImageIO.read(new ByteArrayInputStream(bytes));
+                        if (firstFrame != null)
+                        {
+                            return new ImageIcon(firstFrame);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                    }
+                }
+            }
+            return new ImageIcon(bytes);
+        }
+
+        private boolean isGif()
+        {
+            return bytes.length > 3 && bytes[0] == 'G' && bytes[1] == 'I' && bytes[2] == 'F';
+        }
+
+        /**
+         * Creates an icon for the image no bigger than a given size. Images
+         * that are bigger are decoded with source subsampling, so the full
+         * resolution is never held in memory, and then shrunk to fit exactly.
+         * GIFs are always decoded in full so that they can animate.
+         *
+         * No source region is set: a fitted photo is always shown whole, and
+         * at full size the viewer scrolls around the one decoded image, so
+         * cropping to what is visible would mean decoding again on every
+         * scroll.
+         *
+         * @param maxWidth the widest the icon may be, in pixels
+         * @param maxHeight the tallest the icon may be, in pixels
+         * @return the icon to display
+         */
+        public Icon createIcon(int maxWidth, int maxHeight)
+        {
+            if (isGif())
+            {
+                return createIcon();
+            }
+            try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes)))
+            {
+                Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+                if (!readers.hasNext())
+                {
+                    return createIcon();
+                }
+                ImageReader reader = readers.next();
+                try
+                {
+                    reader.setInput(in, true, true);
+                    int width = reader.getWidth(0);
+                    int height = reader.getHeight(0);
+                    double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
+                    if (scale >= 1)
+                    {
+                        return createIcon();
+                    }
+
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    int subsampling = (int) (1 / scale); //Still at least as big as it will be shown
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                    BufferedImage image = reader.read(0, param);
+                    int targetWidth = Math.max(1, (int) Math.round(width * scale));
+                    int targetHeight = Math.max(1, (int) Math.round(height * scale));
+                    return new ImageIcon(image.getWidth() > targetWidth ? resize(image, targetWidth, targetHeight) : image);
+                }
+                finally
+                {
+                    reader.dispose();
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                return createIcon(); //Some JPEGs (CMYK ones for example) can only be decoded by the toolkit
+            }
+        }
+
+        private static BufferedImage resize(BufferedImage image, int width, int height)
+        {
+            BufferedImage resized = new BufferedImage(width, height, image.getTransparency() == Transparency.OPAQUE ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = resized.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(image, 0, 0, width, height, null);
+            g.dispose();
+            return resized;
+        }
+    }
+
+    /**
+     * Loads an image from the disk cache, or downloads it and adds it to the
+     * cache.
+     *
+     * @param url the URL of the image
+     * @return the loaded image
+     * @throws IOException if the image is not cached and could not be
+     * downloaded
+     */
+    public static LoadedImage load(URL url) throws IOException
+    {
+        ImagePackCache cache = ImagePackCache.getInstance();
+        String key = url.toExternalForm();
+        if (cache != null)
+        {
+            byte[] cached = cache.get(key);
+            if (cached != null)
+            {
+                return fromBytes(key, cached);
+            }
+        }
+
+        //If the same image is already being downloaded (say by read ahead) then wait for that instead
+        FutureTask<LoadedImage> download = new FutureTask<>(new Downloader(url, cache));
+        FutureTask<LoadedImage> existing = downloadsInFlight.putIfAbsent(key, download);
+        if (existing == null)
+        {
+            download.run();
+        }
+        else
+        {
+            download = existing;
+        }
+
+        try
+        {
+            return download.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        finally
+        {
+            downloadsInFlight.remove(key, download);
+        }
+    }
+
+    /**
+     * Loads an image only if it is already in the disk cache.
+     *
+     * @param url the URL of the image
+     * @return the loaded image or null if it isn't cached
+     */
+    public static LoadedImage loadIfCached(String url)
+    {
+        ImagePackCache cache = ImagePackCache.getInstance();
+        byte[] cached = cache != null ? cache.get(url) : null;
+        return cached != null ? fromBytes(url, cached) : null;
+    }
+
+    /**
+     * Wraps an image's bytes that were kept somewhere other than the disk
+     * cache.
+     *
+     * @param url the URL of the image
+     * @param bytes its bytes
+     * @return the loaded image
+     */
+    public static LoadedImage fromBytes(String url, byte[] bytes)
+    {
+        return new LoadedImage(url, bytes, GIFzeroTimedWorkaround.isZeroTimedGif(bytes));
+    }
+
+    private static class Downloader implements Callable<LoadedImage>
+    {
+        private final URL url;
+        private final ImagePackCache cache;
+
+        Downloader(URL url, ImagePackCache cache)
+        {
+            this.url = url;
+            this.cache = cache;
+        }
+
+        @Override
+        public LoadedImage call() throws IOException
+        {
+            String key = url.toExternalForm();
+            GIFzeroTimedWorkaround.ZeroTimedGifSniffer sniffer = new GIFzeroTimedWorkaround.ZeroTimedGifSniffer();
+            byte[] downloaded = download(url, sniffer);
+            if (cache != null)
+            {
+                cache.put(key, downloaded);
+            }
+            return new LoadedImage(key, downloaded, sniffer.isZeroTimed());
+        }
+    }
+
+    /**
+     * Downloads the whole body of a URL.
+     *
+     * @param url the URL to download
+     * @return the bytes downloaded
+     * @throws IOException if the download fails
+     */
+    public static byte[] download(URL url) throws IOException
+    {
+        return download(url, null);
+    }
+
+    private static byte[] download(URL url, GIFzeroTimedWorkaround.ZeroTimedGifSniffer sniffer) throws IOException
+    {
+        try
+        {
+            ImageDownloadPool.acquireHost(url.getHost());
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+
+        try (InputStream in = url.openStream())
+        {
+            byte[] buffer = new byte[DOWNLOAD_BUFFER_BYTES];
+            int length = 0;
+            int read;
+            while ((read = in.read(buffer, length, buffer.length - length)) != -1)
+            {
+                length += read;
+                if (sniffer != null)
+                {
+                    sniffer.inspect(buffer, length);
+                }
+                if (length == buffer.length)
+                {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+        finally
+        {
+            ImageDownloadPool.releaseHost(url.getHost());
+        }
+    }
+}
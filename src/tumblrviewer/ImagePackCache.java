@@ -0,0 +1,566 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A persistent disk cache for downloaded images. Image bytes are appended to
+ * large pack files and located through a memory mapped hash index keyed by the
+ * image URL, so photos seen in a previous session load at disk speed.
+ *
+ * When the cache grows past its byte budget the oldest pack is compacted:
+ * entries that have been viewed since the pack was written are copied forward
+ * into the current pack and the rest of the pack is deleted.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class ImagePackCache
+{
+    private static final String INDEX_FILE_NAME = "index.dat";
+    private static final String PACK_FILE_PREFIX = "pack-";
+    private static final String PACK_FILE_SUFFIX = ".dat";
+    private static final int INDEX_MAGIC = 0x54495043; //"TIPC"
+    private static final int INDEX_HEADER_BYTES = 16;
+    private static final int SLOT_BYTES = 32; //key(8) pack(4) length(4) offset(8) lastAccess(8)
+    private static final int SLOT_COUNT = 1 << 17;
+    private static final long EMPTY_KEY = 0;
+    private static final long DELETED_KEY = -1;
+    private static final long PACK_FILE_MAX_BYTES = 64L * 1024 * 1024;
+    /* End of constants*/
+    private static ImagePackCache instance;
+    private final File cacheDirectory;
+    private final long maxCacheBytes;
+    private final MappedByteBuffer index;
+    private final TreeMap<Integer, RandomAccessFile> packs = new TreeMap<>();
+    private int usedSlots = 0;
+    private int deletedSlots = 0;
+    private long totalPackBytes = 0;
+
+    /**
+     * Gets the process wide image cache, opening it on first use.
+     *
+     * @return the cache or null if the cache directory cannot be used
+     */
+    public static synchronized ImagePackCache getInstance()
+    {
+        if (instance == null)
+        {
+            File directory = new File(MainViewGUI.prefs.get("IMAGE_CACHE_DIRECTORY", new File(MainViewGUI.getDataDirectory(), "images").getPath()));
+            long maxBytes = MainViewGUI.prefs.getInt("IMAGE_CACHE_MAX_MB", 1024) * 1024L * 1024L;
+            try
+            {
+                instance = new ImagePackCache(directory, maxBytes);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Image cache disabled: " + e.getMessage()); //NOI18N
+                return null;
+            }
+        }
+        return instance;
+    }
+
+    ImagePackCache(File cacheDirectory, long maxCacheBytes) throws IOException
+    {
+        this.cacheDirectory = cacheDirectory;
+        this.maxCacheBytes = maxCacheBytes;
+
+        if (!cacheDirectory.isDirectory() && !cacheDirectory.mkdirs())
+        {
+            throw new IOException("Cannot create " + cacheDirectory);
+        }
+
+        File[] packFiles = cacheDirectory.listFiles();
+        if (packFiles != null)
+        {
+            for (File packFile : packFiles)
+            {
+                String name = packFile.getName();
+                if (name.startsWith(PACK_FILE_PREFIX) && name.endsWith(PACK_FILE_SUFFIX))
+                {
+                    try
+                    {
+                        int packId = Integer.parseInt(name.substring(PACK_FILE_PREFIX.length(), name.length() - PACK_FILE_SUFFIX.length()));
+                        packs.put(packId, new RandomAccessFile(packFile, "rw"));
+                        totalPackBytes += packFile.length();
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        //Not one of ours
+                    }
+                }
+            }
+        }
+
+        long indexBytes = INDEX_HEADER_BYTES + (long) SLOT_COUNT * SLOT_BYTES;
+        try (RandomAccessFile indexFile = new RandomAccessFile(new File(cacheDirectory, INDEX_FILE_NAME), "rw"))
+        {
+            boolean fresh = indexFile.length() != indexBytes;
+            indexFile.setLength(indexBytes);
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, indexBytes);
+            if (fresh || index.getInt(0) != INDEX_MAGIC || index.getInt(4) != SLOT_COUNT)
+            {
+                clearIndex();
+            }
+        }
+
+        for (int slot = 0; slot < SLOT_COUNT; slot++)
+        {
+            long key = slotKey(slot);
+            if (key == DELETED_KEY)
+            {
+                deletedSlots++;
+            }
+            else if (key != EMPTY_KEY)
+            {
+                if (packs.containsKey(slotPack(slot)))
+                {
+                    usedSlots++;
+                }
+                else
+                {
+                    index.putLong(slotPosition(slot), DELETED_KEY); //Pack has gone missing
+                    deletedSlots++;
+                }
+            }
+        }
+
+        if (packs.isEmpty())
+        {
+            openPack(0);
+        }
+        else
+        {
+            truncateTornTail(packs.lastKey()); //Only the newest pack is ever appended to, so only it can be torn
+        }
+    }
+
+    /**
+     * Looks up an image in the cache.
+     *
+     * @param url the URL the image was downloaded from
+     * @return the image bytes or null if not cached
+     */
+    public synchronized byte[] get(String url)
+    {
+        int slot = findSlot(url);
+        if (slot < 0)
+        {
+            return null;
+        }
+        try
+        {
+            byte[] data = readRecord(url, slotPack(slot), index.getLong(slotPosition(slot) + 16));
+            if (data == null)
+            {
+                deleteSlot(slot);
+                return null;
+            }
+            index.putLong(slotPosition(slot) + 24, System.currentTimeMillis());
+            return data;
+        }
+        catch (IOException | RuntimeException e)
+        {
+            deleteSlot(slot);
+            return null;
+        }
+    }
+
+    /**
+     * Stores an image in the cache, replacing any previous copy.
+     *
+     * @param url the URL the image was downloaded from
+     * @param data the image bytes
+     */
+    public synchronized void put(String url, byte[] data)
+    {
+        try
+        {
+            append(url, data, System.currentTimeMillis());
+            while (totalPackBytes > maxCacheBytes && packs.size() > 1)
+            {
+                compactOldestPack();
+            }
+        }
+        catch (IOException | RuntimeException e)
+        {
+            System.err.println("Couldn't write to image cache: " + e); //NOI18N
+        }
+    }
+
+    /**
+     * @return the number of bytes currently held in pack files
+     */
+    public synchronized long getTotalBytes()
+    {
+        return totalPackBytes;
+    }
+
+    private void append(String url, byte[] data, long lastAccess) throws IOException
+    {
+        byte[] urlBytes = url.getBytes(StandardCharsets.UTF_8);
+        int recordBytes = 8 + urlBytes.length + data.length;
+
+        int packId = packs.lastKey();
+        RandomAccessFile pack = packs.get(packId);
+        if (pack.length() > 0 && pack.length() + recordBytes > PACK_FILE_MAX_BYTES)
+        {
+            packId++;
+            pack = openPack(packId);
+        }
+
+        long offset = pack.length();
+        ByteBuffer record = ByteBuffer.allocate(recordBytes);
+        record.putInt(urlBytes.length).put(urlBytes).putInt(data.length).put(data);
+        record.flip();
+        pack.getChannel().write(record, offset);
+        totalPackBytes += recordBytes;
+
+        int existing = findSlot(url);
+        if (existing >= 0)
+        {
+            deleteSlot(existing);
+        }
+        if (usedSlots + deletedSlots >= SLOT_COUNT * 3 / 4)
+        {
+            rebuildIndex();
+        }
+        insertSlot(url, packId, data.length, offset, lastAccess);
+    }
+
+    private byte[] readRecord(String url, int packId, long offset) throws IOException
+    {
+        RandomAccessFile pack = packs.get(packId);
+        if (pack == null)
+        {
+            return null;
+        }
+        FileChannel channel = pack.getChannel();
+        if (recordEnd(channel, offset, channel.size()) < 0)
+        {
+            return null; //Truncated or garbled pack
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(channel, header, offset);
+        int urlLength = header.getInt();
+        ByteBuffer urlAndLength = ByteBuffer.allocate(urlLength + 4);
+        readFully(channel, urlAndLength, offset + 4);
+        byte[] urlBytes = new byte[urlLength];
+        urlAndLength.get(urlBytes);
+        if (!url.equals(new String(urlBytes, StandardCharsets.UTF_8)))
+        {
+            return null; //Hash collision
+        }
+
+        ByteBuffer data = ByteBuffer.allocate(urlAndLength.getInt());
+        if (!readFully(channel, data, offset + 8 + urlLength))
+        {
+            return null; //Truncated since we checked
+        }
+        return data.array();
+    }
+
+    /**
+     * Works out where the record at an offset ends, checking that the lengths
+     * it gives fit inside the pack.
+     *
+     * @return the offset just after the record, or -1 if it is torn or
+     * garbled
+     */
+    private static long recordEnd(FileChannel channel, long offset, long packLength) throws IOException
+    {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        if (packLength - offset < 8 || !readFully(channel, length, offset))
+        {
+            return -1;
+        }
+        int urlLength = length.getInt();
+        if (urlLength < 0 || urlLength > packLength - offset - 8)
+        {
+            return -1;
+        }
+        length.clear();
+        if (!readFully(channel, length, offset + 4 + urlLength))
+        {
+            return -1;
+        }
+        int dataLength = length.getInt();
+        if (dataLength < 0 || dataLength > packLength - offset - 8 - urlLength)
+        {
+            return -1;
+        }
+        return offset + 8 + urlLength + dataLength;
+    }
+
+    /**
+     * Fills a buffer from a file and flips it ready to be read.
+     *
+     * @return false if the file ended first
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+            {
+                return false;
+            }
+            position += read;
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Cuts a pack back to its last whole record, dropping whatever a crash
+     * left half written so that new records aren't appended after it.
+     */
+    private void truncateTornTail(int packId) throws IOException
+    {
+        FileChannel channel = packs.get(packId).getChannel();
+        long length = channel.size();
+        long offset = 0;
+        while (offset < length)
+        {
+            long end = recordEnd(channel, offset, length);
+            if (end < 0)
+            {
+                System.err.println("Truncating torn " + packFile(packId) + " at " + offset); //NOI18N
+                channel.truncate(offset);
+                totalPackBytes -= length - offset;
+                break;
+            }
+            offset = end;
+        }
+    }
+
+    /**
+     * Removes the oldest pack, first copying forward any of its entries that
+     * have been looked at since the pack was last written to.
+     */
+    private void compactOldestPack() throws IOException
+    {
+        int packId = packs.firstKey();
+        RandomAccessFile pack = packs.get(packId);
+        File packFile = packFile(packId);
+        long sealedAt = packFile.lastModified();
+        long copyBudget = pack.length() / 2; //Guarantees each compaction frees space
+        FileChannel channel = pack.getChannel();
+
+        long offset = 0;
+        long length = pack.length();
+        try
+        {
+            while (offset < length)
+            {
+                long end = recordEnd(channel, offset, length);
+                if (end < 0)
+                {
+                    System.err.println("Dropping garbled end of " + packFile + " from " + offset); //NOI18N
+                    break;
+                }
+                pack.seek(offset);
+                byte[] urlBytes = new byte[pack.readInt()];
+                pack.readFully(urlBytes);
+                int dataLength = pack.readInt();
+                String url = new String(urlBytes, StandardCharsets.UTF_8);
+
+                int slot = findSlot(url);
+                if (slot >= 0 && slotPack(slot) == packId && index.getLong(slotPosition(slot) + 16) == offset)
+                {
+                    long lastAccess = index.getLong(slotPosition(slot) + 24);
+                    deleteSlot(slot);
+                    if (lastAccess > sealedAt && dataLength <= copyBudget)
+                    {
+                        byte[] data = new byte[dataLength];
+                        pack.readFully(data);
+                        copyBudget -= dataLength;
+                        append(url, data, lastAccess);
+                    }
+                }
+                offset = end;
+            }
+        }
+        catch (IOException e)
+        {
+            //Whatever wasn't copied forward is lost, but the pack must still go or the budget is never kept
+            System.err.println("Couldn't compact " + packFile + ": " + e.getMessage()); //NOI18N
+        }
+
+        packs.remove(packId);
+        pack.close();
+        totalPackBytes -= length;
+        if (!packFile.delete())
+        {
+            System.err.println("Couldn't delete " + packFile); //NOI18N
+        }
+    }
+
+    private RandomAccessFile openPack(int packId) throws IOException
+    {
+        RandomAccessFile pack = new RandomAccessFile(packFile(packId), "rw");
+        packs.put(packId, pack);
+        return pack;
+    }
+
+    private File packFile(int packId)
+    {
+        return new File(cacheDirectory, PACK_FILE_PREFIX + packId + PACK_FILE_SUFFIX);
+    }
+
+    private static long hashKey(String url)
+    {
+        //64-bit FNV-1a, remapped away from the two reserved key values
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < url.length(); i++)
+        {
+            hash ^= url.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        if (hash == EMPTY_KEY || hash == DELETED_KEY)
+        {
+            hash = 1;
+        }
+        return hash;
+    }
+
+    private static int slotPosition(int slot)
+    {
+        return INDEX_HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private long slotKey(int slot)
+    {
+        return index.getLong(slotPosition(slot));
+    }
+
+    private int slotPack(int slot)
+    {
+        return index.getInt(slotPosition(slot) + 8);
+    }
+
+    private int findSlot(String url)
+    {
+        long key = hashKey(url);
+        int slot = (int) (key ^ (key >>> 32)) & (SLOT_COUNT - 1);
+        for (int probes = 0; probes < SLOT_COUNT; probes++)
+        {
+            long slotKey = slotKey(slot);
+            if (slotKey == EMPTY_KEY)
+            {
+                return -1;
+            }
+            if (slotKey == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & (SLOT_COUNT - 1);
+        }
+        return -1;
+    }
+
+    private void insertSlot(String url, int packId, int length, long offset, long lastAccess)
+    {
+        insertSlot(hashKey(url), packId, length, offset, lastAccess);
+    }
+
+    private void insertSlot(long key, int packId, int length, long offset, long lastAccess)
+    {
+        int slot = (int) (key ^ (key >>> 32)) & (SLOT_COUNT - 1);
+        while (slotKey(slot) != EMPTY_KEY && slotKey(slot) != DELETED_KEY)
+        {
+            slot = (slot + 1) & (SLOT_COUNT - 1);
+        }
+        if (slotKey(slot) == DELETED_KEY)
+        {
+            deletedSlots--;
+        }
+        int position = slotPosition(slot);
+        index.putInt(position + 8, packId);
+        index.putInt(position + 12, length);
+        index.putLong(position + 16, offset);
+        index.putLong(position + 24, lastAccess);
+        index.putLong(position, key); //Written last so a torn write leaves the slot unused
+        usedSlots++;
+    }
+
+    private void deleteSlot(int slot)
+    {
+        index.putLong(slotPosition(slot), DELETED_KEY);
+        usedSlots--;
+        deletedSlots++;
+    }
+
+    private void clearIndex()
+    {
+        for (int position = 0; position < index.capacity(); position += 8)
+        {
+            index.putLong(position, 0);
+        }
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, SLOT_COUNT);
+        usedSlots = 0;
+        deletedSlots = 0;
+    }
+
+    /**
+     * Rehashes the index to clear out deleted slots. If the table is genuinely
+     * full the oldest entries are dropped.
+     */
+    private void rebuildIndex()
+    {
+        int live = 0;
+        long[][] entries = new long[usedSlots][];
+        for (int slot = 0; slot < SLOT_COUNT && live < entries.length; slot++)
+        {
+            long key = slotKey(slot);
+            if (key != EMPTY_KEY && key != DELETED_KEY)
+            {
+                int position = slotPosition(slot);
+                entries[live++] = new long[]
+                {
+                    key, index.getInt(position + 8), index.getInt(position + 12), index.getLong(position + 16), index.getLong(position + 24)
+                };
+            }
+        }
+
+        Arrays.sort(entries, 0, live, new Comparator<long[]>()
+        {
+            @Override
+            public int compare(long[] a, long[] b)
+            {
+                return Long.compare(b[4], a[4]); //Most recently used first
+            }
+        });
+
+        clearIndex();
+        int keep = Math.min(live, SLOT_COUNT / 2);
+        for (int i = 0; i < keep; i++)
+        {
+            long[] entry = entries[i];
+            insertSlot(entry[0], (int) entry[1], (int) entry[2], entry[3], entry[4]);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+/**
+ * A set of longs such as post IDs, kept in one open addressed array instead
+ * of a HashSet of boxed Longs, so it costs 8 to 16 bytes a value rather than
+ * around 50. Not thread safe.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class LongHashSet
+{
+    private static final long EMPTY = 0;
+    /* End of constants*/
+    private long[] slots = new long[64];
+    private int size = 0;
+    private boolean containsEmpty = false; //0 can't go in a slot as it marks empty ones
+
+    /**
+     * @param value the value to add
+     * @return true if it wasn't already in the set
+     */
+    public boolean add(long value)
+    {
+        if (value == EMPTY)
+        {
+            boolean added = !containsEmpty;
+            containsEmpty = true;
+            return added;
+        }
+        if ((size + 1) * 2 > slots.length)
+        {
+            grow();
+        }
+        int mask = slots.length - 1;
+        int slot = getSlot(value, mask);
+        while (slots[slot] != EMPTY)
+        {
+            if (slots[slot] == value)
+            {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param value the value to look for
+     * @return true if it is in the set
+     */
+    public boolean contains(long value)
+    {
+        if (value == EMPTY)
+        {
+            return containsEmpty;
+        }
+        int mask = slots.length - 1;
+        for (int slot = getSlot(value, mask); slots[slot] != EMPTY; slot = (slot + 1) & mask)
+        {
+            if (slots[slot] == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many values are in the set
+     */
+    public int size()
+    {
+        return containsEmpty ? size + 1 : size;
+    }
+
+    private static int getSlot(long value, int mask)
+    {
+        long mixed = value * 0x9E3779B97F4A7C15L; //Post IDs are far from random in their low bits
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private void grow()
+    {
+        long[] oldSlots = slots;
+        slots = new long[oldSlots.length * 2];
+        int mask = slots.length - 1;
+        for (long value : oldSlots)
+        {
+            if (value != EMPTY)
+            {
+                int slot = getSlot(value, mask);
+                while (slots[slot] != EMPTY)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = value;
+            }
+        }
+    }
+}
@@ -19,9 +19,11 @@ package tumblrviewer;
 import com.tumblr.jumblr.types.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.io.File;
+import java.text.MessageFormat;
 import java.text.NumberFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.prefs.Preferences;
@@ -43,12 +45,16 @@ public class MainViewGUI
     static final ImageIcon loading64ImageIcon = new ImageIcon(MainViewGUI.class.getResource("load-avatar-64.gif"), "Loading avatar");
     static final ImageIcon transparent16ImageIcon = new ImageIcon(MainViewGUI.class.getResource("transparent-16.png"));
     static final int MAXIMUM_BLOG_LINKS_PER_MENU = 30;
+    private static final int FEED_FLUSH_INTERVAL_MS = 16;
     /* End of constants*/
     private final TumblrBackend tumblrBackend;
     private final JFrame jFrame;
     private final Container panel;
     private final Container imageDisplay;
-    private int imagesLoadedCounter = 0;
+    private final FeedView feedView;
+    private final ArrayList<FeedView.Entry> pendingFeedEntries = new ArrayList<>();
+    private boolean feedFlushScheduled = false;
+    private final javax.swing.Timer feedFlushTimer;
     private JMenu followingOrNotMenu;
     LinkedHashMap<DisplayModes, JRadioButtonMenuItem> modeItems;
     private JMenu modeSelectMenu;
@@ -57,8 +63,12 @@ public class MainViewGUI
     private JMenu currentUserOptionsMenu;
     private JMenuItem currentUserGoToMenu;
     private JMenuItem avatarIconViewMenuItem;
+    private JMenuItem jumpToDateMenuItem;
+    private JMenuItem archiveMenuItem;
+    private JTextField searchField;
     private JMenu currentUserFollowingMenu;
     private JMenu currentUserFollowersMenu;
+    private final EnumMap<FolMenuMode, Runnable> latestFolMenuSetups = new EnumMap<>(FolMenuMode.class);
 
     private enum FolMenuMode
     {
@@ -75,6 +85,20 @@ public class MainViewGUI
      * current signed in user's home blog
      */
     public MainViewGUI(DisplayModes currentDisplayMode, String blogToView)
+    {
+        this(currentDisplayMode, blogToView, null);
+    }
+
+    /**
+     * Creates a new GUI that starts part way through a blog's posts or likes.
+     *
+     * @param currentDisplayMode - whether to show posts or likes
+     * @param blogToView the blog name to view - if null will resolve to the
+     * current signed in user's home blog
+     * @param startDate start from the newest post at or before this date - if
+     * null will start from the top
+     */
+    public MainViewGUI(DisplayModes currentDisplayMode, String blogToView, Date startDate)
     {
         prefs = Preferences.userRoot().node(this.getClass().getPackage().getName());
 
@@ -102,6 +126,11 @@ public class MainViewGUI
 
         addBlogHTMLTitleAndDescription();
 
+        feedView = new FeedView(new FeedEntryClickListener());
+        feedFlushTimer = new javax.swing.Timer(FEED_FLUSH_INTERVAL_MS, new FeedFlushActionListener());
+        feedFlushTimer.setRepeats(false);
+        imageDisplay.add(feedView);
+
         JScrollPane jsp = new JScrollPane(imageDisplay, ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS, ScrollPaneConstants.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         jsp.setWheelScrollingEnabled(true);
         jsp.getVerticalScrollBar().setUnitIncrement(50);
@@ -109,7 +138,7 @@ public class MainViewGUI
 
         JButton moreButton = new JButton(java.util.ResourceBundle.getBundle("en_gb").getString("LOAD MORE"));
         moreButton.setMnemonic('L');
-        moreButton.addActionListener(new LoadMoreActionListener(tumblrBackend, moreButton));
+        moreButton.addActionListener(new LoadMoreActionListener(tumblrBackend, moreButton, startDate));
 
         if (AUTO_LOAD_AT_PAGE_END)
         {
@@ -133,13 +162,14 @@ public class MainViewGUI
     {
         final int maxTextWidth = TumblrBackend.PHOTO_PREFERRED_SIZE;
 
-        final String blogTitle = tumblrBackend.getBlogInfo(tumblrBackend.getCurrentViewingBlog()).getTitle();
+        Blog blogInfo = tumblrBackend.getBlogInfo(tumblrBackend.getCurrentViewingBlog());
+        final String blogTitle = blogInfo.getTitle();
         JLabel blogTitleLabel = new JLabel("<html><div style=\"width:" + maxTextWidth + ";\"><font size=+2><b><center>" + blogTitle + "</center></b></font></div></html>");
         blogTitleLabel.setHorizontalAlignment(JLabel.CENTER);
         blogTitleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
         imageDisplay.add(blogTitleLabel);
 
-        String blogDesc = tumblrBackend.getBlogInfo(tumblrBackend.getCurrentViewingBlog()).getDescription();
+        String blogDesc = blogInfo.getDescription();
         if (!blogDesc.toLowerCase().contains("<br")) //Only want to do this if blog desc doesn't already contain breakpoints
         {
             blogDesc = blogDesc.replaceAll("(\r\n|\n)", "<br />");
@@ -151,53 +181,156 @@ public class MainViewGUI
     }
 
     /**
-     * Adds an image to the main view by passing a URL
+     * Adds a photo to the end of the main view. The image itself is only
+     * loaded once it gets near the viewport.
      *
-     * @param previewImageUrl The url with reference to the image
-     * @param photoPost The photoPost object that we are going to add
-     * @param photoNumberInPost The number post in the photoPost object that
-     * previewImageUrl refers to
+     * @param entry the feed entry for the photo
      */
-    public void addImage(final String previewImageUrl, final PhotoPost photoPost, final int photoNumberInPost)
+    public void addEntry(FeedView.Entry entry)
     {
-        ImageIcon icon;
-        boolean isZeroTimed;
-        try
+        boolean startFlush = false;
+        synchronized (pendingFeedEntries)
         {
-            URL url = new URL(previewImageUrl);
-            icon = new ImageIcon(url);
-            isZeroTimed = GIFzeroTimedWorkaround.isZeroTimedGif(url);
+            pendingFeedEntries.add(entry);
+            if (!feedFlushScheduled)
+            {
+                feedFlushScheduled = true;
+                startFlush = true;
+            }
         }
-        catch (MalformedURLException e)
+        if (startFlush)
         {
-            return; //No point in completing rest of method
+            feedFlushTimer.restart();
         }
+    }
+
+    /**
+     * @return how many pixels wide a photo has to be to fill the main view
+     */
+    public int getNeededPhotoWidth()
+    {
+        return feedView.getNeededPhotoWidth();
+    }
 
-        JLabel imageLabel = new JLabel();
-        imageLabel.setIcon(icon);
+    /**
+     * Takes a photo back out of the main view once it turns out to look the
+     * same as another, and counts it against that one instead.
+     *
+     * @param duplicate the entry that was added
+     * @param shownCopy the entry showing the photo
+     */
+    public void collapseDuplicate(final FeedView.Entry duplicate, final FeedView.Entry shownCopy)
+    {
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                boolean stillPending;
+                synchronized (pendingFeedEntries)
+                {
+                    stillPending = pendingFeedEntries.remove(duplicate);
+                }
+                if (!stillPending)
+                {
+                    feedView.removeEntry(duplicate);
+                    jFrame.setTitle(tumblrBackend.guiTitle + " (" + feedView.getEntryCount() + ")");
+                }
+                feedView.addDuplicate(shownCopy);
+            }
+        });
+    }
 
-        if (isZeroTimed)
+    /**
+     * Counts another copy of a photo that is already in the main view.
+     *
+     * @param shownCopy the entry showing the photo
+     */
+    public void addDuplicate(final FeedView.Entry shownCopy)
+    {
+        SwingUtilities.invokeLater(new Runnable()
         {
-            icon.setImageObserver(new GIFzeroTimedWorkaround.ImageObserverWorkaround(imageLabel));
+            @Override
+            public void run()
+            {
+                feedView.addDuplicate(shownCopy);
+            }
+        });
+    }
+
+    /**
+     * Adds everything that has arrived since the last flush to the feed in
+     * one go, so there is one layout pass and one title update per frame
+     * rather than one per image.
+     */
+    private class FeedFlushActionListener implements ActionListener
+    {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            ArrayList<FeedView.Entry> newEntries;
+            synchronized (pendingFeedEntries)
+            {
+                newEntries = new ArrayList<>(pendingFeedEntries);
+                pendingFeedEntries.clear();
+                feedFlushScheduled = false;
+            }
+            String query = searchField.getText();
+            if (PostSearchIndex.hasWords(query))
+            {
+                //Only the new posts can have changed, so there's no need to search everything again
+                HashSet<Long> matchingPostIds = new HashSet<>();
+                for (FeedView.Entry entry : newEntries)
+                {
+                    if (!matchingPostIds.contains(entry.getPhotoPost().getId()) && PostSearchIndex.matches(entry.getPhotoPost(), query))
+                    {
+                        matchingPostIds.add(entry.getPhotoPost().getId());
+                    }
+                }
+                feedView.addToFilter(matchingPostIds);
+            }
+            feedView.addEntries(newEntries);
+            jFrame.setTitle(tumblrBackend.guiTitle + " (" + feedView.getEntryCount() + ")");
         }
+    }
 
-        /*label.setText(tooltipText);
-         label.setVerticalTextPosition(JLabel.BOTTOM);
-         label.setHorizontalTextPosition(JLabel.CENTER);*/
-        imageLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+    private class SearchFieldDocumentListener implements DocumentListener
+    {
+        @Override
+        public void insertUpdate(DocumentEvent e)
+        {
+            search();
+        }
 
-        final String blogName = photoPost.getBlogName();
-        if (!blogName.isEmpty())
+        @Override
+        public void removeUpdate(DocumentEvent e)
         {
-            imageLabel.setToolTipText(blogName);
+            search();
         }
 
-        imageLabel.addMouseListener(new ImageLabelMouseAdapter(this, photoPost, photoNumberInPost));
+        @Override
+        public void changedUpdate(DocumentEvent e)
+        {
+        }
 
-        imageDisplay.add(imageLabel);
-        imagesLoadedCounter++;
-        jFrame.setTitle(tumblrBackend.guiTitle + " (" + imagesLoadedCounter + ")");
-        panel.revalidate();
+        private void search()
+        {
+            String query = searchField.getText();
+            feedView.setFilter(PostSearchIndex.hasWords(query) ? PostSearchIndex.getInstance().search(query) : null);
+        }
+    }
+
+    /**
+     * Gets the directory where things are kept between runs, creating it if
+     * need be.
+     *
+     * @return the directory
+     */
+    static File getDataDirectory()
+    {
+        File directory = new File(System.getProperty("user.home"), ".tumblrviewer");
+        directory.mkdirs();
+        return directory;
     }
 
     private static void setGUITheme()
@@ -241,11 +374,13 @@ public class MainViewGUI
         private final TumblrBackend tumblrBackend;
         private final JButton button;
         private Thread loaderThread;
+        private Date startDate; //Sought on the loader thread before the first load, as it can take several requests
 
-        public LoadMoreActionListener(TumblrBackend tumblrBackend, JButton button)
+        public LoadMoreActionListener(TumblrBackend tumblrBackend, JButton button, Date startDate)
         {
             this.tumblrBackend = tumblrBackend;
             this.button = button;
+            this.startDate = startDate;
         }
 
         @Override
@@ -264,6 +399,14 @@ public class MainViewGUI
         @Override
         public void run()
         {
+            if (startDate != null)
+            {
+                if (tumblrBackend.canSeekToDate())
+                {
+                    tumblrBackend.seekToDate(startDate);
+                }
+                startDate = null;
+            }
             tumblrBackend.tumblrLoadMore();
             button.setEnabled(true);
             button.setText(java.util.ResourceBundle.getBundle("en_gb").getString("LOAD MORE"));
@@ -286,10 +429,13 @@ public class MainViewGUI
             JViewport source = (JViewport) e.getSource();
             int bottomOfCurrentScrollPosition = (int) source.getViewPosition().getY() + (int) source.getExtentSize().getHeight();
             int bottomOfCompleteView = source.getView().getHeight();
+            //Start loading while there are still this many screens left to scroll through
+            double loadMoreThresholdScreens = MainViewGUI.prefs.getDouble("LOAD_MORE_THRESHOLD_SCREENS", 2.0);
+            int loadMoreThreshold = (int) (source.getExtentSize().getHeight() * loadMoreThresholdScreens);
 
-            if ((bottomOfCurrentScrollPosition - bottomOfCompleteView) >= 0)
+            if ((bottomOfCurrentScrollPosition + loadMoreThreshold - bottomOfCompleteView) >= 0)
             {
-                //We have reached the bottom!
+                //We are near enough the bottom!
                 moreButton.doClick();
             }
         }
@@ -332,6 +478,10 @@ public class MainViewGUI
         avatarIconViewMenuItem.setEnabled(false);
         avatarIconViewMenuItem.setIcon(loading64ImageIcon);
         avatarIconViewMenuItem.addActionListener(new AvatarIconViewMenuItemActionListener());
+        jumpToDateMenuItem = new JMenuItem(java.util.ResourceBundle.getBundle("en_gb").getString("JUMP TO DATE"));
+        jumpToDateMenuItem.setEnabled(false);
+        jumpToDateMenuItem.addActionListener(new JumpToDateMenuItemActionListener());
+        modeSelectMenu.add(jumpToDateMenuItem);
         modeSelectMenu.add(avatarIconViewMenuItem);
 
         followingOrNotMenu = new JMenu("...");
@@ -386,11 +536,23 @@ public class MainViewGUI
 
         appMenu.add(configuratonWindowMenuItem);
 
+        archiveMenuItem = new JMenuItem(java.util.ResourceBundle.getBundle("en_gb").getString("ARCHIVE"));
+        archiveMenuItem.setEnabled(false);
+        archiveMenuItem.addActionListener(new ArchiveMenuItemActionListener());
+        appMenu.add(archiveMenuItem);
+
         jMenuBar.add(modeSelectMenu);
         jMenuBar.add(currentUserOptionsMenu);
         jMenuBar.add(followingOrNotMenu);
         jMenuBar.add(appMenu);
 
+        searchField = new JTextField(15);
+        searchField.setToolTipText(java.util.ResourceBundle.getBundle("en_gb").getString("SEARCH TOOLTIP"));
+        searchField.setMaximumSize(searchField.getPreferredSize());
+        searchField.getDocument().addDocumentListener(new SearchFieldDocumentListener());
+        jMenuBar.add(Box.createHorizontalGlue());
+        jMenuBar.add(searchField);
+
         doRefreshControls();
 
         return jMenuBar;
@@ -427,6 +589,8 @@ public class MainViewGUI
                 toBeSelectedMenuItem.setSelected(true);
 
                 modeItems.get(DisplayModes.POSTS).setEnabled(true);
+                jumpToDateMenuItem.setEnabled(tumblrBackend.canSeekToDate());
+                archiveMenuItem.setEnabled(tumblrBackend.canArchive());
                 if (tumblrBackend.isCurrentUsersBlog())
                 {
                     modeItems.get(DisplayModes.DASHBOARD).setEnabled(true);
@@ -502,9 +666,12 @@ public class MainViewGUI
             }
         }
 
-        private class SetUpCurrentUserFolMenu implements Runnable
+        private class SetUpCurrentUserFolMenu implements Runnable, FollowCrawler.Listener
         {
             private final FolMenuMode mode;
+            private JMenu currentUserFolMenu;
+            private String menuItemText;
+            private int linksShown = 0;
 
             public SetUpCurrentUserFolMenu(FolMenuMode mode)
             {
@@ -514,47 +681,115 @@ public class MainViewGUI
             @Override
             public void run()
             {
-                final JMenu currentUserFolMenu;
-                final Collection<String> userList;
-                final String menuItemText;
-
                 switch (mode)
                 {
                     case FOLLOWING:
                         currentUserFolMenu = currentUserFollowingMenu;
-                        userList = tumblrBackend.getAllUserFollowing();
                         menuItemText = "Following";
                         break;
                     case FOLLOWERS:
                         currentUserFolMenu = currentUserFollowersMenu;
-                        userList = tumblrBackend.getAllUserFollowers();
                         menuItemText = "Followers";
                         break;
                     default:
                         return;
                 }
 
-                currentUserFolMenu.setText(menuItemText + " (" + NumberFormat.getIntegerInstance().format(userList.size()) + ")");
-                currentUserFolMenu.removeAll(); //Remove all previous items on a refresh
+                synchronized (latestFolMenuSetups)
+                {
+                    latestFolMenuSetups.put(mode, this); //Any older setup still receiving names will now ignore them
+                }
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        currentUserFolMenu.removeAll(); //Remove all previous items on a refresh
+                    }
+                });
+
+                //The list streams in as its pages arrive, so the menu is usable before it has all loaded
+                if (mode == FolMenuMode.FOLLOWING)
+                {
+                    tumblrBackend.addUserFollowingListener(this);
+                }
+                else
+                {
+                    tumblrBackend.addUserFollowersListener(this);
+                }
+            }
+
+            @Override
+            public void namesArrived(final java.util.List<String> newNames, final int loadedCount, final Collection<String> completeList)
+            {
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        synchronized (latestFolMenuSetups)
+                        {
+                            if (latestFolMenuSetups.get(mode) != SetUpCurrentUserFolMenu.this)
+                            {
+                                return;
+                            }
+                        }
+                        addNamesToMenu(newNames, loadedCount, completeList);
+                    }
+                });
+            }
 
-                int i = 0;
-                for (String blogName : userList)
+            @Override
+            public void listReplaced(final Collection<String> completeList)
+            {
+                SwingUtilities.invokeLater(new Runnable()
                 {
-                    if (i < MAXIMUM_BLOG_LINKS_PER_MENU)
+                    @Override
+                    public void run()
                     {
-                        AddBlogMenuLink addBlogMenuLink = new AddBlogMenuLink(tumblrBackend, blogName, currentUserFolMenu, jFrame);
-                        addBlogMenuLink.run();
-                        i++;
+                        synchronized (latestFolMenuSetups)
+                        {
+                            if (latestFolMenuSetups.get(mode) != SetUpCurrentUserFolMenu.this)
+                            {
+                                return;
+                            }
+                        }
+                        //The saved list we showed first has been brought up to date so start again
+                        currentUserFolMenu.removeAll();
+                        linksShown = 0;
+                        addNamesToMenu(new ArrayList<>(completeList), completeList.size(), completeList);
                     }
-                    else
+                });
+            }
+
+            private void addNamesToMenu(java.util.List<String> newNames, int loadedCount, Collection<String> completeList)
+            {
+                for (String blogName : newNames)
+                {
+                    if (linksShown >= MAXIMUM_BLOG_LINKS_PER_MENU)
                     {
-                        JMenuItem loadMoreBlogLinksMenuItem = new JMenuItem("+" + NumberFormat.getIntegerInstance().format(userList.size() - i) + " more blogs");
-                        loadMoreBlogLinksMenuItem.addActionListener(new MoreBlogLinks(jFrame, menuItemText, null, userList, tumblrBackend));
-                        currentUserFolMenu.add(loadMoreBlogLinksMenuItem);
                         break;
                     }
+                    AddBlogMenuLink addBlogMenuLink = new AddBlogMenuLink(tumblrBackend, blogName, currentUserFolMenu, jFrame);
+                    addBlogMenuLink.run();
+                    linksShown++;
+                }
+
+                if (completeList == null)
+                {
+                    currentUserFolMenu.setText(menuItemText + " (" + NumberFormat.getIntegerInstance().format(loadedCount) + "...)");
+                }
+                else
+                {
+                    currentUserFolMenu.setText(menuItemText + " (" + NumberFormat.getIntegerInstance().format(completeList.size()) + ")");
+                    if (completeList.size() > linksShown)
+                    {
+                        JMenuItem loadMoreBlogLinksMenuItem = new JMenuItem("+" + NumberFormat.getIntegerInstance().format(completeList.size() - linksShown) + " more blogs");
+                        loadMoreBlogLinksMenuItem.addActionListener(new MoreBlogLinks(jFrame, menuItemText, null, completeList, tumblrBackend));
+                        currentUserFolMenu.add(loadMoreBlogLinksMenuItem);
+                    }
                 }
-                currentUserFolMenu.setEnabled(true);
+                currentUserFolMenu.setEnabled(linksShown > 0 || completeList != null);
             }
         }
     }
@@ -619,27 +854,19 @@ public class MainViewGUI
         }
     }
 
-    private class ImageLabelMouseAdapter extends MouseAdapter implements Runnable
+    private class FeedEntryClickListener implements FeedView.EntryClickListener, Runnable
     {
-        private final PhotoPost photoPost;
-        private final int photoNumberInPost;
-        private final MainViewGUI mainViewGUI;
+        private FeedView.Entry entry;
         private Thread loaderThread;
 
-        public ImageLabelMouseAdapter(MainViewGUI mainViewGUI, PhotoPost photoPost, int photoNumberInPost)
-        {
-            this.photoPost = photoPost;
-            this.photoNumberInPost = photoNumberInPost;
-            this.mainViewGUI = mainViewGUI;
-        }
-
         @Override
-        public void mousePressed(MouseEvent e)
+        public void entryClicked(FeedView.Entry entry)
         {
             if (loaderThread != null)
             {
                 return;
             }
+            this.entry = entry;
             loaderThread = new Thread((Runnable) this);
             loaderThread.start();
         }
@@ -647,7 +874,7 @@ public class MainViewGUI
         @Override
         public void run()
         {
-            PhotoPostViewer photoPostViewer = new PhotoPostViewer(mainViewGUI, tumblrBackend, photoPost, photoNumberInPost);
+            PhotoPostViewer photoPostViewer = new PhotoPostViewer(MainViewGUI.this, tumblrBackend, entry.getPhotoPost(), entry.getPhotoNumberInPost(), entry.url);
             loaderThread = null;
         }
     }
@@ -737,6 +964,106 @@ public class MainViewGUI
         }
     }
 
+    private class ArchiveMenuItemActionListener implements ActionListener, BlogArchiver.Listener
+    {
+        private BlogArchiver blogArchiver;
+
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            if (blogArchiver != null)
+            {
+                blogArchiver.cancel();
+                archiveMenuItem.setEnabled(false);
+                archiveMenuItem.setText(java.util.ResourceBundle.getBundle("en_gb").getString("STOPPING"));
+                return;
+            }
+
+            String blogName = tumblrBackend.getCurrentViewingBlog();
+            DisplayModes displayMode = tumblrBackend.getCurrentDisplayMode();
+            String modeName = java.util.ResourceBundle.getBundle("en_gb").getString(displayMode.name()).toLowerCase();
+            int choice = JOptionPane.showConfirmDialog(jFrame, MessageFormat.format(java.util.ResourceBundle.getBundle("en_gb").getString("ARCHIVE CONFIRM"), blogName, modeName, BlogArchiver.getArchiveDirectory(blogName, displayMode)), java.util.ResourceBundle.getBundle("en_gb").getString("ARCHIVE TITLE"), JOptionPane.OK_CANCEL_OPTION);
+            if (choice != JOptionPane.OK_OPTION)
+            {
+                return;
+            }
+
+            blogArchiver = new BlogArchiver(blogName, displayMode, this);
+            archiveMenuItem.setText(java.util.ResourceBundle.getBundle("en_gb").getString("STOP ARCHIVING"));
+            (new Thread(blogArchiver, "Archiver")).start();
+        }
+
+        @Override
+        public void progress(final int postsArchived, final int photosDownloaded)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (archiveMenuItem.isEnabled())
+                    {
+                        archiveMenuItem.setText(MessageFormat.format(java.util.ResourceBundle.getBundle("en_gb").getString("STOP ARCHIVING PROGRESS"), postsArchived, photosDownloaded));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void finished(final Exception error)
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    blogArchiver = null;
+                    archiveMenuItem.setText(java.util.ResourceBundle.getBundle("en_gb").getString("ARCHIVE"));
+                    archiveMenuItem.setEnabled(true);
+                    if (error != null)
+                    {
+                        JOptionPane.showMessageDialog(jFrame, MessageFormat.format(java.util.ResourceBundle.getBundle("en_gb").getString("ARCHIVING STOPPED"), error.getMessage()), java.util.ResourceBundle.getBundle("en_gb").getString("ERROR"), JOptionPane.ERROR_MESSAGE);
+                    }
+                }
+            });
+        }
+    }
+
+    private class JumpToDateMenuItemActionListener implements ActionListener
+    {
+        @Override
+        @SuppressWarnings("ResultOfObjectAllocationIgnored")
+        public void actionPerformed(ActionEvent e)
+        {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+            dateFormat.setLenient(false);
+            String dateText = JOptionPane.showInputDialog(jFrame, "Enter the date to start from (YYYY-MM-DD):", dateFormat.format(new Date()));
+            if (dateText == null || dateText.isEmpty())
+            {
+                return;
+            }
+
+            Calendar endOfDay = Calendar.getInstance();
+            try
+            {
+                endOfDay.setTime(dateFormat.parse(dateText.trim()));
+            }
+            catch (ParseException ex)
+            {
+                JOptionPane.showMessageDialog(jFrame, "\"" + dateText + "\" is not a date!", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            endOfDay.add(Calendar.DAY_OF_MONTH, 1);
+            endOfDay.add(Calendar.SECOND, -1);
+
+            new MainViewGUI(tumblrBackend.getCurrentDisplayMode(), tumblrBackend.getCurrentViewingBlog(), endOfDay.getTime());
+            if (SINGLE_VIEW_MODE)
+            {
+                jFrame.dispose();
+            }
+        }
+    }
+
     /**
      * This method is used internally and externally to ensure that the menu bar
      * control's at the top are properly up to date.
@@ -17,7 +17,13 @@
 package tumblrviewer;
 
 import com.tumblr.jumblr.types.PhotoPost;
-import java.net.MalformedURLException;
+import com.tumblr.jumblr.types.PhotoSize;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.io.IOException;
 import java.net.URL;
 import javax.swing.*;
 
@@ -25,20 +31,37 @@ import javax.swing.*;
  * The PostViewer designed specifically to view PhotoPost's
  * @author jonathan
  */
-public class PhotoPostViewer extends PostViewer
+public class PhotoPostViewer extends PostViewer implements DecodedImageGovernor.Holder
 {
     private final MainViewGUI mainViewGUI;
     private final TumblrBackend tumblrBackend;
     private final PhotoPost photoPost;
     private final int photoNumberInPost;
+    private final String previewUrl;
+    private final PhotoSize source;
+    private volatile ImageLoader.LoadedImage sourceImage;
+    private volatile boolean fullSize = false;
+    private JCheckBoxMenuItem fullSizeItem;
+    private boolean contentEvicted = false;
 
     public PhotoPostViewer(MainViewGUI mainViewGUI, TumblrBackend tumblrBackend, PhotoPost photoPost, int photoNumberInPost)
+    {
+        this(mainViewGUI, tumblrBackend, photoPost, photoNumberInPost, null);
+    }
+
+    /**
+     * @param previewUrl the URL of a smaller size of the photo that may
+     * already be cached, or null
+     */
+    public PhotoPostViewer(MainViewGUI mainViewGUI, TumblrBackend tumblrBackend, PhotoPost photoPost, int photoNumberInPost, String previewUrl)
     {
         super(mainViewGUI, tumblrBackend, photoPost);
         this.mainViewGUI = mainViewGUI;
         this.tumblrBackend = tumblrBackend;
         this.photoPost = photoPost;
         this.photoNumberInPost = photoNumberInPost;
+        this.previewUrl = previewUrl;
+        this.source = photoPost.getPhotos().get(photoNumberInPost).getSizes().get(0);
 
         super.loadFromTumblr();
     }
@@ -60,36 +83,247 @@ public class PhotoPostViewer extends PostViewer
             String photoPostListProgressText = " (" + (photoNumberInPost + 1) + "/" + photoPost.getPhotos().size() + ")";
             this.getjFrame().setTitle(currentTitle + photoPostListProgressText);
         }
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                JMenu zoomMenu = new JMenu(java.util.ResourceBundle.getBundle("en_gb").getString("ZOOM"));
+                fullSizeItem = new JCheckBoxMenuItem(java.util.ResourceBundle.getBundle("en_gb").getString("FULL SIZE"));
+                fullSizeItem.addActionListener(new FullSizeItemActionListener());
+                zoomMenu.add(fullSizeItem);
+                getjFrame().getJMenuBar().add(zoomMenu);
+                getjFrame().getJMenuBar().revalidate();
+
+                ContentWindowListener contentWindowListener = new ContentWindowListener();
+                getjFrame().addWindowListener(contentWindowListener);
+                getjFrame().addWindowFocusListener(contentWindowListener);
+            }
+        });
     }
 
-    private class LoadMainContent implements Runnable
+    /**
+     * Works out how big the photo is shown when it is fitted to the window.
+     */
+    private Dimension getFittedSize()
+    {
+        Container viewport = contentLabel.getParent();
+        Dimension box = viewport != null && viewport.getWidth() > 0 ? viewport.getSize() : GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds().getSize();
+        double scale = Math.min(1, Math.min((double) box.width / source.getWidth(), (double) box.height / source.getHeight()));
+        return new Dimension(Math.max(1, (int) Math.round(source.getWidth() * scale)), Math.max(1, (int) Math.round(source.getHeight() * scale)));
+    }
+
+    /**
+     * Makes an icon for the original, only decoding as many pixels as will be
+     * shown unless the user has asked for it at full size.
+     */
+    private Icon createSourceIcon()
+    {
+        if (fullSize || source.getWidth() <= 0 || source.getHeight() <= 0)
+        {
+            return sourceImage.createIcon();
+        }
+        Dimension fitted = getFittedSize();
+        GraphicsConfiguration graphicsConfiguration = contentLabel.getGraphicsConfiguration();
+        double screenScale = graphicsConfiguration != null ? graphicsConfiguration.getDefaultTransform().getScaleX() : 1;
+        Icon icon = sourceImage.createIcon((int) Math.ceil(fitted.width * screenScale), (int) Math.ceil(fitted.height * screenScale));
+        return icon.getIconWidth() == fitted.width && icon.getIconHeight() == fitted.height ? icon : new ScaledIcon(icon, fitted.width, fitted.height);
+    }
+
+    private void showContent(final Icon icon, final String text)
     {
-        private final String sourceImageUrl = photoPost.getPhotos().get(photoNumberInPost).getSizes().get(0).getUrl();
-        private boolean isZeroTimed;
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                contentLabel.setIcon(icon);
+                contentLabel.setText(text);
+                contentEvicted = false;
+                if (icon != null)
+                {
+                    Icon decodedIcon = icon instanceof ScaledIcon ? ((ScaledIcon) icon).icon : icon;
+                    DecodedImageGovernor.getInstance().register(PhotoPostViewer.this, contentLabel, icon, DecodedImageGovernor.getDecodedBytes(decodedIcon));
+                }
+                else
+                {
+                    DecodedImageGovernor.getInstance().release(PhotoPostViewer.this, contentLabel);
+                }
+            }
+        });
+    }
+
+    /**
+     * Gives the photo back when memory is short. It is decoded again once the
+     * window is next looked at.
+     */
+    @Override
+    public void evictDecodedImage(Object key, Object image)
+    {
+        if (contentLabel.getIcon() == image)
+        {
+            contentLabel.setIcon(null);
+            contentLabel.setText(java.util.ResourceBundle.getBundle("en_gb").getString("LOADING"));
+            contentEvicted = true;
+        }
+    }
+
+    private class ContentWindowListener extends WindowAdapter
+    {
+        @Override
+        public void windowGainedFocus(WindowEvent e)
+        {
+            DecodedImageGovernor.getInstance().viewed(PhotoPostViewer.this, contentLabel);
+            if (contentEvicted && sourceImage != null)
+            {
+                contentEvicted = false;
+                new Thread(new ShowSourceImage(), "Post Content Loader").start();
+            }
+        }
+
+        @Override
+        public void windowClosed(WindowEvent e)
+        {
+            DecodedImageGovernor.getInstance().releaseAll(PhotoPostViewer.this);
+        }
+    }
+
+    private class FullSizeItemActionListener implements ActionListener
+    {
+        @Override
+        public void actionPerformed(ActionEvent e)
+        {
+            fullSize = fullSizeItem.isSelected();
+            if (sourceImage != null)
+            {
+                new Thread(new ShowSourceImage(), "Post Content Loader").start();
+            }
+        }
+    }
 
+    /**
+     * Decodes the original again, at full size if asked for and there is room
+     * or else fitted to the window.
+     */
+    private class ShowSourceImage implements Runnable
+    {
         @Override
         public void run()
         {
-            ImageIcon icon;
             try
             {
-                URL url = new URL(sourceImageUrl);
-                icon = new ImageIcon(url);
-                contentLabel.setIcon(icon);
-                contentLabel.setText(null); //Get rid of "Loading..." message
-                isZeroTimed = GIFzeroTimedWorkaround.isZeroTimedGif(url);
+                showContent(createSourceIcon(), null);
+            }
+            catch (OutOfMemoryError e)
+            {
+                DecodedImageGovernor.getInstance().relieveMemoryPressure();
+                if (!fullSize)
+                {
+                    showContent(null, e.toString());
+                    return;
+                }
+                fullSize = false;
+                SwingUtilities.invokeLater(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        fullSizeItem.setSelected(false);
+                    }
+                });
+                run();
+            }
+        }
+    }
 
+    /**
+     * Shows the size of the photo from the feed straight away, stretched to
+     * the size the original will be shown at, and then swaps in the original
+     * once it has downloaded. The preview is decoded afresh from the feed's
+     * bytes rather than borrowing the feed's icon, so that the governor counts
+     * each window's pixels once and can evict them separately.
+     */
+    private class LoadMainContent implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            Icon preview = null;
+            if (previewUrl != null)
+            {
+                byte[] kept = CompressedImageStore.getInstance().get(previewUrl);
+                ImageLoader.LoadedImage cached = kept != null ? ImageLoader.fromBytes(previewUrl, kept) : ImageLoader.loadIfCached(previewUrl);
+                preview = cached != null ? cached.createIcon() : null;
             }
-            catch (MalformedURLException e)
+            if (preview != null)
             {
-                contentLabel.setText(e.getMessage());
-                return;
+                if (source.getWidth() > 0 && source.getHeight() > 0)
+                {
+                    Dimension fitted = getFittedSize();
+                    preview = new ScaledIcon(preview, fitted.width, fitted.height);
+                }
+                showContent(preview, null);
             }
 
-            if (isZeroTimed)
+            try
+            {
+                URL url = new URL(source.getUrl());
+                sourceImage = ImageLoader.load(url);
+                new ShowSourceImage().run(); //Gets rid of "Loading..." message
+            }
+            catch (IOException e)
             {
-                icon.setImageObserver(new GIFzeroTimedWorkaround.ImageObserverWorkaround(contentLabel));
+                if (preview == null)
+                {
+                    showContent(null, e.getMessage());
+                }
             }
         }
     }
+
+    /**
+     * Draws an icon stretched to another size.
+     */
+    private static class ScaledIcon implements Icon
+    {
+        private final Icon icon;
+        private final int width;
+        private final int height;
+
+        ScaledIcon(Icon icon, int width, int height)
+        {
+            this.icon = icon;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y)
+        {
+            if (icon instanceof AnimatedGifIcon)
+            {
+                ((AnimatedGifIcon) icon).paintIcon(c, g, x, y, width, height);
+                return;
+            }
+            Graphics2D scaled = (Graphics2D) g.create();
+            scaled.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            scaled.translate(x, y);
+            scaled.scale((double) width / icon.getIconWidth(), (double) height / icon.getIconHeight());
+            icon.paintIcon(c, scaled, 0, 0);
+            scaled.dispose();
+        }
+
+        @Override
+        public int getIconWidth()
+        {
+            return width;
+        }
+
+        @Override
+        public int getIconHeight()
+        {
+            return height;
+        }
+    }
 }
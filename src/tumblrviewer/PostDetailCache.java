@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.types.Post;
+import java.util.*;
+import java.util.concurrent.Callable;
+
+/**
+ * Fetches the full details of a post (whether it is liked, its note count,
+ * its notes and where it was reblogged from) in one request, and remembers
+ * them for POST_DETAIL_CACHE_TTL_SECONDS so that every control in a
+ * PostViewer can be filled in from the same copy. Simultaneous requests for
+ * the same post share a single fetch.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class PostDetailCache
+{
+    private static final int MAX_POSTS = 100;
+    /* End of constants*/
+    private static final SharedFetchCache<Long, Post> posts = new SharedFetchCache<>("POST_DETAIL_CACHE_TTL_SECONDS", 120, null, MAX_POSTS);
+
+    /**
+     * Gets the full details of a post, fetching them only if there isn't a
+     * fresh copy.
+     *
+     * @param client the client used if the post has to be fetched
+     * @param post the post as it was listed
+     * @return the post with its notes and reblog info filled in
+     * @throws com.tumblr.jumblr.exceptions.JumblrException if the post
+     * couldn't be fetched
+     */
+    public static Post get(final JumblrClient client, Post post)
+    {
+        final String blogName = post.getBlogName();
+        final Long postId = post.getId();
+        return posts.get(postId, new Callable<Post>()
+        {
+            @Override
+            public Post call()
+            {
+                Map<String, Object> params = new HashMap<>();
+                params.put("id", postId);
+                params.put("reblog_info", true);
+                params.put("notes_info", true);
+                return client.blogPosts(blogName, params).get(0);
+            }
+        });
+    }
+
+    /**
+     * Forgets a post's details, such as after it has been liked or reblogged.
+     *
+     * @param postId the post that has changed
+     */
+    public static void invalidate(Long postId)
+    {
+        posts.invalidate(postId);
+    }
+}
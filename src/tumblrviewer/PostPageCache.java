@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.types.Post;
+import java.util.*;
+import tumblrviewer.TumblrBackend.DisplayModes;
+
+/**
+ * Remembers recently fetched pages of posts so that going back to a blog, or
+ * switching between its posts and likes, doesn't fetch the same pages again.
+ * Pages are kept for a time that depends on how quickly that kind of list
+ * changes (the dashboard only briefly) and the least recently used pages are
+ * dropped once there are more than PAGE_CACHE_MAX_PAGES.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class PostPageCache
+{
+    private static final LinkedHashMap<PageKey, CachedPage> pages = new LinkedHashMap<>(64, 0.75f, true);
+
+    /**
+     * One page of posts along with the cursor that fetches the page after it.
+     */
+    public static class Page
+    {
+        final List<Post> posts;
+        final Long nextCursor;
+
+        public Page(List<Post> posts, Long nextCursor)
+        {
+            this.posts = Collections.unmodifiableList(new ArrayList<>(posts));
+            this.nextCursor = nextCursor;
+        }
+
+        public List<Post> getPosts()
+        {
+            return posts;
+        }
+
+        /**
+         * @return the cursor for the following page, or null if it can only
+         * be fetched by offset
+         */
+        public Long getNextCursor()
+        {
+            return nextCursor;
+        }
+    }
+
+    private static class CachedPage
+    {
+        final Page page;
+        final long expiryTime;
+
+        CachedPage(Page page, long expiryTime)
+        {
+            this.page = page;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * Where a page was fetched from. An offset and a cursor can have the same
+     * value, so which of them the position is forms part of the key.
+     */
+    private static class PageKey
+    {
+        final String blogName;
+        final DisplayModes displayMode;
+        final boolean byCursor;
+        final long position;
+        final int limit;
+
+        PageKey(String blogName, DisplayModes displayMode, boolean byCursor, long position, int limit)
+        {
+            this.blogName = blogName;
+            this.displayMode = displayMode;
+            this.byCursor = byCursor;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof PageKey))
+            {
+                return false;
+            }
+            PageKey other = (PageKey) o;
+            return Objects.equals(blogName, other.blogName) && displayMode == other.displayMode && byCursor == other.byCursor && position == other.position && limit == other.limit;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(blogName, displayMode, byCursor, position, limit);
+        }
+    }
+
+    private static long getTimeToLive(DisplayModes displayMode)
+    {
+        switch (displayMode)
+        {
+            case DASHBOARD:
+                return MainViewGUI.prefs.getInt("PAGE_CACHE_TTL_DASHBOARD_SECONDS", 60) * 1000L;
+            case LIKES:
+                return MainViewGUI.prefs.getInt("PAGE_CACHE_TTL_LIKES_SECONDS", 300) * 1000L;
+            default:
+                return MainViewGUI.prefs.getInt("PAGE_CACHE_TTL_POSTS_SECONDS", 600) * 1000L;
+        }
+    }
+
+    /**
+     * Gets a page that was fetched recently.
+     *
+     * @param blogName the blog the page is from
+     * @param displayMode which of the blog's lists the page is from
+     * @param byCursor true if the page was fetched by cursor rather than by
+     * offset
+     * @param position the offset or cursor the page was fetched at
+     * @param limit the page size it was fetched with
+     * @return the page or null if there is no fresh copy
+     */
+    public static synchronized Page get(String blogName, DisplayModes displayMode, boolean byCursor, long position, int limit)
+    {
+        PageKey key = new PageKey(blogName, displayMode, byCursor, position, limit);
+        CachedPage cachedPage = pages.get(key);
+        if (cachedPage == null)
+        {
+            return null;
+        }
+        if (System.currentTimeMillis() > cachedPage.expiryTime)
+        {
+            pages.remove(key);
+            return null;
+        }
+        return cachedPage.page;
+    }
+
+    /**
+     * Remembers a page that has just been fetched.
+     */
+    public static synchronized void put(String blogName, DisplayModes displayMode, boolean byCursor, long position, int limit, Page page)
+    {
+        long expiryTime = System.currentTimeMillis() + getTimeToLive(displayMode);
+        pages.put(new PageKey(blogName, displayMode, byCursor, position, limit), new CachedPage(page, expiryTime));
+
+        int maxPages = MainViewGUI.prefs.getInt("PAGE_CACHE_MAX_PAGES", 200);
+        Iterator<CachedPage> leastRecentlyUsed = pages.values().iterator();
+        while (pages.size() > maxPages && leastRecentlyUsed.hasNext())
+        {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Forgets every page of one of a blog's lists, such as after the user has
+     * liked something.
+     *
+     * @param blogName the blog that has changed
+     * @param displayMode the list that has changed
+     */
+    public static synchronized void invalidate(String blogName, DisplayModes displayMode)
+    {
+        Iterator<PageKey> keys = pages.keySet().iterator();
+        while (keys.hasNext())
+        {
+            PageKey key = keys.next();
+            if (Objects.equals(key.blogName, blogName) && key.displayMode == displayMode)
+            {
+                keys.remove();
+            }
+        }
+    }
+}
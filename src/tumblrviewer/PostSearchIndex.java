@@ -0,0 +1,472 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.types.*;
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * An inverted index over the words in every post we have ever loaded: its
+ * tags, caption, blog name and the blog it was reblogged from. Each word maps
+ * to a sorted list of the posts containing it, so a search is just a merge of
+ * a few int arrays.
+ *
+ * The index is kept on disk as an append only log in which every word is
+ * written out once and then referred to by number, so each post costs only a
+ * few bytes.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class PostSearchIndex
+{
+    private static final byte TERM_RECORD = 'T';
+    private static final byte POST_RECORD = 'P';
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern HTML_TAG = Pattern.compile("<[^>]*>|&[a-zA-Z#0-9]+;");
+    /* End of constants*/
+    private static PostSearchIndex instance;
+    private final File file;
+    private DataOutputStream log;
+    private final TreeMap<String, Integer> termNumbers = new TreeMap<>();
+    private int[][] postings = new int[1024][];
+    private int[] postingLengths = new int[1024];
+    private long[] postIds = new long[1024];
+    private int postCount = 0;
+    private final LongHashSet indexedPostIds = new LongHashSet();
+
+    /**
+     * Gets the process wide index, loading it on first use.
+     *
+     * @return the index
+     */
+    public static synchronized PostSearchIndex getInstance()
+    {
+        if (instance == null)
+        {
+            instance = new PostSearchIndex(new File(MainViewGUI.getDataDirectory(), "search-index.dat"));
+        }
+        return instance;
+    }
+
+    PostSearchIndex(File file)
+    {
+        this.file = file;
+        load();
+        try
+        {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        }
+        catch (IOException e)
+        {
+            System.err.println("Search index won't be saved: " + e.getMessage()); //NOI18N
+        }
+    }
+
+    /**
+     * Adds any posts that aren't in the index yet.
+     *
+     * @param posts posts that have just been loaded
+     */
+    public synchronized void add(List<Post> posts)
+    {
+        try
+        {
+            for (Post post : posts)
+            {
+                if (indexedPostIds.add(post.getId()))
+                {
+                    addPost(post.getId(), getTerms(post), true);
+                }
+            }
+            if (log != null)
+            {
+                log.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't save to the search index: " + e.getMessage()); //NOI18N
+            log = null;
+        }
+    }
+
+    /**
+     * Finds the posts containing every word in a query. The last word also
+     * matches any word it is the start of, so results appear while typing.
+     *
+     * @param query the words to look for
+     * @return the IDs of the matching posts
+     */
+    public synchronized Set<Long> search(String query)
+    {
+        List<String> words = tokenise(query);
+        HashSet<Long> results = new HashSet<>();
+        if (words.isEmpty())
+        {
+            return results;
+        }
+
+        int[] matches = null;
+        int matchCount = 0;
+        for (int i = 0; i < words.size(); i++)
+        {
+            int[] wordMatches;
+            if (i == words.size() - 1)
+            {
+                wordMatches = getPrefixPostings(words.get(i));
+            }
+            else
+            {
+                Integer termNumber = termNumbers.get(words.get(i));
+                wordMatches = termNumber == null ? new int[0] : Arrays.copyOf(postings[termNumber], postingLengths[termNumber]);
+            }
+
+            if (matches == null)
+            {
+                matches = wordMatches;
+                matchCount = wordMatches.length;
+            }
+            else
+            {
+                matchCount = intersect(matches, matchCount, wordMatches, wordMatches.length);
+            }
+            if (matchCount == 0)
+            {
+                return results;
+            }
+        }
+
+        for (int i = 0; i < matchCount; i++)
+        {
+            results.add(postIds[matches[i]]);
+        }
+        return results;
+    }
+
+    /**
+     * @param query what has been typed
+     * @return true if the query has any words to search for
+     */
+    public static boolean hasWords(String query)
+    {
+        return !tokenise(query).isEmpty();
+    }
+
+    /**
+     * Checks a single post against a query the same way search does, without
+     * going through the index, for posts that arrive while a search is shown.
+     *
+     * @param post the post
+     * @param query the words to look for
+     * @return true if search would find the post
+     */
+    public static boolean matches(Post post, String query)
+    {
+        List<String> words = tokenise(query);
+        if (words.isEmpty())
+        {
+            return false;
+        }
+        Set<String> terms = getTerms(post);
+        for (int i = 0; i < words.size() - 1; i++)
+        {
+            if (!terms.contains(words.get(i)))
+            {
+                return false;
+            }
+        }
+        String lastWord = words.get(words.size() - 1);
+        for (String term : terms)
+        {
+            if (term.startsWith(lastWord))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int[] getPrefixPostings(String prefix)
+    {
+        SortedMap<String, Integer> terms = termNumbers.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (terms.size() == 1)
+        {
+            int termNumber = terms.values().iterator().next();
+            return Arrays.copyOf(postings[termNumber], postingLengths[termNumber]);
+        }
+
+        BitSet union = new BitSet(postCount);
+        for (int termNumber : terms.values())
+        {
+            for (int i = 0; i < postingLengths[termNumber]; i++)
+            {
+                union.set(postings[termNumber][i]);
+            }
+        }
+        int[] merged = new int[union.cardinality()];
+        int length = 0;
+        for (int post = union.nextSetBit(0); post >= 0; post = union.nextSetBit(post + 1))
+        {
+            merged[length++] = post;
+        }
+        return merged;
+    }
+
+    /**
+     * Intersects two sorted lists, writing the result over the first.
+     *
+     * @return the length of the result
+     */
+    private static int intersect(int[] a, int aLength, int[] b, int bLength)
+    {
+        int i = 0, j = 0, length = 0;
+        while (i < aLength && j < bLength)
+        {
+            if (a[i] < b[j])
+            {
+                i++;
+            }
+            else if (a[i] > b[j])
+            {
+                j++;
+            }
+            else
+            {
+                a[length++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return length;
+    }
+
+    private static Set<String> getTerms(Post post)
+    {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        addBlogName(terms, post.getBlogName());
+        addBlogName(terms, post.getRebloggedFromName());
+        if (post.getTags() != null)
+        {
+            for (String tag : post.getTags())
+            {
+                terms.addAll(tokenise(tag));
+            }
+        }
+        if (post instanceof PhotoPost && ((PhotoPost) post).getCaption() != null)
+        {
+            terms.addAll(tokenise(HTML_TAG.matcher(((PhotoPost) post).getCaption()).replaceAll(" ")));
+        }
+        return terms;
+    }
+
+    private static void addBlogName(Set<String> terms, String blogName)
+    {
+        if (blogName != null && !blogName.isEmpty())
+        {
+            terms.add(blogName.toLowerCase(Locale.ROOT)); //So a blog can be found by its whole name as well as its parts
+            terms.addAll(tokenise(blogName));
+        }
+    }
+
+    private static List<String> tokenise(String text)
+    {
+        ArrayList<String> words = new ArrayList<>();
+        for (String word : NON_WORD.split(text.toLowerCase(Locale.ROOT)))
+        {
+            if (!word.isEmpty())
+            {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private void addPost(long postId, Collection<String> terms, boolean save) throws IOException
+    {
+        int postNumber = postCount++;
+        if (postNumber == postIds.length)
+        {
+            postIds = Arrays.copyOf(postIds, postIds.length * 2);
+        }
+        postIds[postNumber] = postId;
+
+        int[] termNumbersInPost = new int[terms.size()];
+        int i = 0;
+        for (String term : terms)
+        {
+            Integer termNumber = termNumbers.get(term);
+            if (termNumber == null)
+            {
+                termNumber = addTerm(term, save);
+            }
+            termNumbersInPost[i++] = termNumber;
+            addPosting(termNumber, postNumber);
+        }
+
+        if (save && log != null)
+        {
+            log.writeByte(POST_RECORD);
+            log.writeLong(postId);
+            writeVarInt(termNumbersInPost.length);
+            for (int termNumber : termNumbersInPost)
+            {
+                writeVarInt(termNumber);
+            }
+        }
+    }
+
+    private int addTerm(String term, boolean save) throws IOException
+    {
+        int termNumber = termNumbers.size();
+        termNumbers.put(term, termNumber);
+        if (termNumber == postings.length)
+        {
+            postings = Arrays.copyOf(postings, postings.length * 2);
+            postingLengths = Arrays.copyOf(postingLengths, postingLengths.length * 2);
+        }
+        postings[termNumber] = new int[4];
+        if (save && log != null)
+        {
+            log.writeByte(TERM_RECORD);
+            log.writeUTF(term);
+        }
+        return termNumber;
+    }
+
+    private void addPosting(int termNumber, int postNumber)
+    {
+        int[] posting = postings[termNumber];
+        int length = postingLengths[termNumber];
+        if (length > 0 && posting[length - 1] == postNumber)
+        {
+            return;
+        }
+        if (length == posting.length)
+        {
+            posting = Arrays.copyOf(posting, length * 2);
+            postings[termNumber] = posting;
+        }
+        posting[length] = postNumber; //Post numbers only go up so the list stays sorted
+        postingLengths[termNumber] = length + 1;
+    }
+
+    private void writeVarInt(int value) throws IOException
+    {
+        while ((value & ~0x7F) != 0)
+        {
+            log.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        log.writeByte(value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0;; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+    }
+
+    private void load()
+    {
+        if (!file.isFile())
+        {
+            return;
+        }
+        ArrayList<String> termsByNumber = new ArrayList<>();
+        long goodLength = 0;
+        final long[] position = new long[1];
+        try (DataInputStream in = new DataInputStream(new FilterInputStream(new BufferedInputStream(new FileInputStream(file)))
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                position[0] += b == -1 ? 0 : 1;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException
+            {
+                int read = super.read(buffer, offset, length);
+                position[0] += Math.max(read, 0);
+                return read;
+            }
+        }))
+        {
+            while (true)
+            {
+                int recordType = in.read();
+                if (recordType == -1)
+                {
+                    break;
+                }
+                if (recordType == TERM_RECORD)
+                {
+                    String term = in.readUTF();
+                    termsByNumber.add(term);
+                    addTerm(term, false);
+                }
+                else if (recordType == POST_RECORD)
+                {
+                    long postId = in.readLong();
+                    int termCount = readVarInt(in);
+                    ArrayList<String> terms = new ArrayList<>(termCount);
+                    for (int i = 0; i < termCount; i++)
+                    {
+                        terms.add(termsByNumber.get(readVarInt(in)));
+                    }
+                    if (indexedPostIds.add(postId))
+                    {
+                        addPost(postId, terms, false);
+                    }
+                }
+                else
+                {
+                    break;
+                }
+                goodLength = position[0];
+            }
+        }
+        catch (IOException | IndexOutOfBoundsException e)
+        {
+            //Cut short when the program last stopped; everything before it is fine
+        }
+
+        if (goodLength < file.length())
+        {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+            {
+                raf.setLength(goodLength); //Drop the broken end so new records follow on cleanly
+            }
+            catch (IOException e)
+            {
+                System.err.println("Couldn't repair " + file + ": " + e.getMessage()); //NOI18N
+            }
+        }
+    }
+}
@@ -139,13 +139,15 @@ public abstract class PostViewer
 
     private class RefreshControls implements Runnable
     {
+        private Post detailedPost;
+
         private class SetLikeButton implements Runnable
         {
             @Override
             public void run()
             {
                 //Liked or not
-                if (tumblrBackend.isCurrentlyLiked(photoPost))
+                if (Boolean.TRUE.equals(detailedPost.isLiked()))
                 {
                     likedOrNotMenu.setText(java.util.ResourceBundle.getBundle("en_gb").getString("LIKED"));
                     likeItem.setEnabled(false);
@@ -208,7 +210,7 @@ public abstract class PostViewer
                 @Override
                 protected java.util.List<Note> doInBackground() throws Exception
                 {
-                    return tumblrBackend.getCurrentNotes(photoPost);
+                    return detailedPost.getNotes();
                 }
             }
 
@@ -219,7 +221,7 @@ public abstract class PostViewer
                 (new Thread(new SetUpNotesMenu())).start();
 
                 //Rest of notes (the counter)
-                Long noteCount = tumblrBackend.getCurrentNoteCount(photoPost);
+                Long noteCount = detailedPost.getNoteCount();
                 String noteCountString = NumberFormat.getIntegerInstance().format(noteCount);
                 notesMenu.setText(noteCountString + " notes");
             }
@@ -231,7 +233,7 @@ public abstract class PostViewer
             public Map<String, Object> doInBackground()
             {
                 Map<String, Object> map = new HashMap();
-                String rebloggedFrom = photoPost.getRebloggedFromName();
+                String rebloggedFrom = detailedPost.getRebloggedFromName();
                 map.put("rebloggedFrom", rebloggedFrom);
                 map.put("standardAvatar", tumblrBackend.getAvatar(rebloggedFrom, 16));
                 map.put("bigAvatar", tumblrBackend.getAvatar(rebloggedFrom, 64));
@@ -268,9 +270,20 @@ public abstract class PostViewer
         @Override
         public void run()
         {
-            (new Thread(new SetLikeButton())).start();
+            //One request fills in every control
+            try
+            {
+                detailedPost = tumblrBackend.getPostDetail(photoPost);
+            }
+            catch (Exception e)
+            {
+                System.err.println("Couldn't load the post's details: " + e.getMessage()); //NOI18N
+                return;
+            }
+
+            new SetLikeButton().run();
             notesMenu.removeAll();
-            (new Thread(new SetNotesInfo())).start();
+            new SetNotesInfo().run();
             (new Thread(new SetReblogInfo(), "Reblog Info load Thread")).start();
         }
     }
@@ -330,6 +343,8 @@ public abstract class PostViewer
                 likedOrNotMenu.setText(java.util.ResourceBundle.getBundle("en_gb").getString("LIKING"));
                 photoPost.like();
             }
+            PostPageCache.invalidate(tumblrBackend.getCurrentUsersName(), DisplayModes.LIKES);
+            PostDetailCache.invalidate(photoPost.getId());
             doRefreshControls();
             loaderThread = null;
         }
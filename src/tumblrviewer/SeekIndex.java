@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A sparse, saved record of when the posts at various points in a blog were
+ * made, used to jump straight to a date. Points are learned while the blog is
+ * browsed and while seeking, and anything in between is found by bisecting
+ * with single post probes.
+ *
+ * Points are stored by how far they are from the blog's oldest post rather
+ * than by offset, because offsets change every time the blog posts something
+ * new but the distance from the other end doesn't.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class SeekIndex
+{
+    private static final int MIN_POINT_SPACING = 200; //Posts between recorded points
+    /* End of constants*/
+    private static final HashMap<String, SeekIndex> indexes = new HashMap<>();
+    private final File file;
+    private final TreeMap<Integer, Long> timestampsFromEnd = new TreeMap<>();
+
+    /**
+     * Finds out when the post at an offset was made.
+     */
+    public interface Probe
+    {
+        /**
+         * @param offset the offset of the post
+         * @return its timestamp in seconds, or null if there isn't one
+         */
+        Long timestampAt(int offset);
+    }
+
+    private SeekIndex(File file)
+    {
+        this.file = file;
+        load();
+    }
+
+    /**
+     * Gets the index for a blog's posts, loading it from disk the first time.
+     *
+     * @param blogName the blog
+     * @return its index
+     */
+    public static synchronized SeekIndex forBlog(String blogName)
+    {
+        SeekIndex index = indexes.get(blogName);
+        if (index == null)
+        {
+            index = new SeekIndex(new File(MainViewGUI.getDataDirectory(), "seek-" + blogName + "-posts.txt"));
+            indexes.put(blogName, index);
+        }
+        return index;
+    }
+
+    /**
+     * Notes when the post at an offset was made, unless there is already a
+     * point close to it.
+     *
+     * @param offset the post's offset
+     * @param timestamp its timestamp in seconds
+     * @param totalPosts how many posts the blog has now
+     */
+    public synchronized void record(int offset, long timestamp, int totalPosts)
+    {
+        if (addPoint(offset, timestamp, totalPosts))
+        {
+            save();
+        }
+    }
+
+    private boolean addPoint(int offset, long timestamp, int totalPosts)
+    {
+        int fromEnd = totalPosts - offset;
+        if (fromEnd <= 0)
+        {
+            return false;
+        }
+        Integer below = timestampsFromEnd.floorKey(fromEnd);
+        Integer above = timestampsFromEnd.ceilingKey(fromEnd);
+        if ((below != null && fromEnd - below < MIN_POINT_SPACING) || (above != null && above - fromEnd < MIN_POINT_SPACING))
+        {
+            return false;
+        }
+        timestampsFromEnd.put(fromEnd, timestamp);
+        return true;
+    }
+
+    /**
+     * Finds the offset of the newest post made at or before a time.
+     *
+     * @param timestamp the time in seconds
+     * @param totalPosts how many posts the blog has now
+     * @param pageSize stop once the post is known to within this many
+     * @param probe used to look up points the index doesn't know
+     * @return the offset to start loading from
+     */
+    public synchronized int findOffset(long timestamp, int totalPosts, int pageSize, Probe probe)
+    {
+        int low = 0; //Everything before this is newer than the time
+        int high = totalPosts; //Everything from here on is at or before it
+        for (Map.Entry<Integer, Long> point : timestampsFromEnd.entrySet())
+        {
+            int offset = totalPosts - point.getKey();
+            if (offset < 0)
+            {
+                continue;
+            }
+            if (point.getValue() > timestamp)
+            {
+                low = Math.max(low, offset + 1);
+            }
+            else
+            {
+                high = Math.min(high, offset);
+            }
+        }
+        if (low > high)
+        {
+            //Posts have been deleted since the points were recorded
+            low = 0;
+            high = totalPosts;
+        }
+
+        boolean learned = false;
+        while (high - low > pageSize)
+        {
+            int middle = (low + high) >>> 1;
+            Long middleTimestamp = probe.timestampAt(middle);
+            if (middleTimestamp == null)
+            {
+                break;
+            }
+            learned |= addPoint(middle, middleTimestamp, totalPosts);
+            if (middleTimestamp > timestamp)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        if (learned)
+        {
+            save();
+        }
+        return low;
+    }
+
+    private void load()
+    {
+        if (!file.isFile())
+        {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                String[] fields = line.split(" ");
+                if (fields.length == 2)
+                {
+                    timestampsFromEnd.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1]));
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e)
+        {
+            timestampsFromEnd.clear(); //Start again rather than trust half of it
+        }
+    }
+
+    private void save()
+    {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temporaryFile), StandardCharsets.UTF_8)))
+        {
+            for (Map.Entry<Integer, Long> point : timestampsFromEnd.entrySet())
+            {
+                writer.write(point.getKey() + " " + point.getValue() + "\n");
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println("Couldn't save " + file + ": " + e.getMessage()); //NOI18N
+            return;
+        }
+        if (!temporaryFile.renameTo(file) && !(file.delete() && temporaryFile.renameTo(file)))
+        {
+            System.err.println("Couldn't replace " + file); //NOI18N
+        }
+    }
+}
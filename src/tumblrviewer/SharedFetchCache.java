@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Remembers values that are costly to fetch for a while, dropping the least
+ * recently used once there are too many. Simultaneous lookups of the same key
+ * share a single fetch, and only the thread that made the fetch stores what
+ * it got.
+ *
+ * A fetch that was started before the key was invalidated may have got the
+ * old value, so invalidating bumps a generation count and such fetches are
+ * not stored. Lookups after invalidating never wait on those fetches either.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ * @param <K> what values are looked up by
+ * @param <V> the values
+ */
+public class SharedFetchCache<K, V>
+{
+    private final String ttlPreference;
+    private final int defaultTtlSeconds;
+    private final String maxEntriesPreference;
+    private final int defaultMaxEntries;
+    private final LinkedHashMap<K, Cached<V>> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+    private long generation = 0;
+
+    private static class Cached<V>
+    {
+        final V value;
+        final long expiryTime;
+
+        Cached(V value, long expiryTime)
+        {
+            this.value = value;
+            this.expiryTime = expiryTime;
+        }
+    }
+
+    /**
+     * @param ttlPreference the preference giving how many seconds values are
+     * kept for
+     * @param defaultTtlSeconds used if that preference isn't set
+     * @param maxEntriesPreference the preference giving how many values are
+     * kept at most, or null to always use the default
+     * @param defaultMaxEntries used if that preference isn't set
+     */
+    public SharedFetchCache(String ttlPreference, int defaultTtlSeconds, String maxEntriesPreference, int defaultMaxEntries)
+    {
+        this.ttlPreference = ttlPreference;
+        this.defaultTtlSeconds = defaultTtlSeconds;
+        this.maxEntriesPreference = maxEntriesPreference;
+        this.defaultMaxEntries = defaultMaxEntries;
+    }
+
+    /**
+     * Gets a value, fetching it only if there isn't a fresh copy and no one
+     * else is already fetching it.
+     *
+     * @param key what to look up
+     * @param fetch run on this thread if the value has to be fetched
+     * @return the value
+     * @throws RuntimeException whatever the fetch threw
+     */
+    public V get(K key, Callable<V> fetch)
+    {
+        long fetchGeneration;
+        synchronized (this)
+        {
+            Cached<V> cached = entries.get(key);
+            if (cached != null && System.currentTimeMillis() <= cached.expiryTime)
+            {
+                return cached.value;
+            }
+            entries.remove(key);
+            fetchGeneration = generation;
+        }
+
+        FutureTask<V> task = new FutureTask<>(fetch);
+        FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        boolean fetching = existing == null;
+        if (!fetching)
+        {
+            task = existing; //Someone else is already fetching so wait for them
+        }
+
+        try
+        {
+            if (fetching)
+            {
+                task.run(); //We are the first to ask so fetch on this thread
+            }
+            V value = task.get();
+            if (fetching)
+            {
+                store(key, value, fetchGeneration);
+            }
+            return value;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while loading " + key); //NOI18N
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally
+        {
+            if (fetching)
+            {
+                inFlight.remove(key, task);
+            }
+        }
+    }
+
+    private synchronized void store(K key, V value, long fetchGeneration)
+    {
+        if (fetchGeneration != generation)
+        {
+            return; //Invalidated while it was being fetched, so it may be out of date
+        }
+        long expiryTime = System.currentTimeMillis() + MainViewGUI.prefs.getInt(ttlPreference, defaultTtlSeconds) * 1000L;
+        entries.put(key, new Cached<>(value, expiryTime));
+
+        int maxEntries = maxEntriesPreference != null ? MainViewGUI.prefs.getInt(maxEntriesPreference, defaultMaxEntries) : defaultMaxEntries;
+        Iterator<Cached<V>> leastRecentlyUsed = entries.values().iterator();
+        while (entries.size() > maxEntries && leastRecentlyUsed.hasNext())
+        {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Forgets a value, such as after it has changed, including one that is
+     * still being fetched.
+     *
+     * @param key the key whose value has changed
+     */
+    public synchronized void invalidate(K key)
+    {
+        entries.remove(key);
+        inFlight.remove(key);
+        generation++;
+    }
+}
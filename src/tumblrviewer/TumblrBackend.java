@@ -16,14 +16,18 @@
  */
 package tumblrviewer;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.tumblr.jumblr.*;
 import com.tumblr.jumblr.exceptions.JumblrException;
+import com.tumblr.jumblr.responses.ResponseWrapper;
 import com.tumblr.jumblr.types.*;
-import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.net.URL;
 import java.util.*;
-import javax.imageio.ImageIO;
+import java.util.concurrent.*;
 import javax.swing.ImageIcon;
 import javax.swing.JOptionPane;
 
@@ -39,16 +43,25 @@ public class TumblrBackend
     private static int POSTS_LOADED_PER_UPDATE;
     private static boolean FULLSIZE_PHOTOS;
     static int PHOTO_PREFERRED_SIZE; // (100/250/400/500) (Default 500)
+    private static final ExecutorService pagePrefetchPool = Executors.newFixedThreadPool(2, new DaemonThreadFactory("Page Prefetcher"));
     final DisplayModes currentDisplayMode;
     /* End of constants*/
     private final MainViewGUI gui;
     private int currentUpdateIndex = 0;
+    private final HashMap<Integer, Future<List<Post>>> pageFetches = new HashMap<>();
+    private final HashMap<Integer, Integer> pageDrifts = new HashMap<>(); //The offsetDrift each page was requested with
+    private int offsetDrift = 0;
+    private final HashMap<Integer, Long> pageCursors = new HashMap<>();
+    private volatile boolean cursorPagingUnsupported = false;
+    private int seekOffset = 0;
+    private Long seekCursor = null;
+    private final DuplicatePhotoFilter duplicatePhotoFilter = new DuplicatePhotoFilter();
+    private final LongHashSet seenPostIds = new LongHashSet();
     private JumblrClient client;
-    private User user;
     final String guiTitle;
     private final String currentlyViewingBlog;
-    static private HashSet<String> allUserFollowing;
-    static private HashSet<String> allUserFollowers;
+    static private FollowCrawler userFollowingCrawler;
+    static private FollowCrawler userFollowersCrawler;
 
     public String getNoteTypePastTense(String type)
     {
@@ -94,9 +107,8 @@ public class TumblrBackend
 
         try
         {
-            client = new JumblrClient(java.util.ResourceBundle.getBundle("Keys").getString("consumer_key"), java.util.ResourceBundle.getBundle("Keys").getString("consumer_secret"));
-            client.setToken(java.util.ResourceBundle.getBundle("Keys").getString("oauth_token"), java.util.ResourceBundle.getBundle("Keys").getString("oauth_token_secret"));
-            user = client.user();
+            client = TumblrSession.getClient();
+            TumblrSession.getUser(); //Make sure we are signed in before going any further
         }
         catch (Exception e)
         {
@@ -106,7 +118,7 @@ public class TumblrBackend
 
         if (currentlyViewingBlog == null)
         {
-            this.currentlyViewingBlog = user.getName();
+            this.currentlyViewingBlog = TumblrSession.getUserName();
         }
         else
         {
@@ -122,61 +134,543 @@ public class TumblrBackend
         try
         {
             //client.postReblog(user.getName(), post.getId(), post.getReblogKey());
-            post.reblog(user.getName());
+            post.reblog(TumblrSession.getUserName());
+            PostPageCache.invalidate(TumblrSession.getUserName(), DisplayModes.POSTS);
+            PostPageCache.invalidate(TumblrSession.getUserName(), DisplayModes.DASHBOARD);
+            BlogInfoCache.invalidate(TumblrSession.getUserName()); //Its post count has gone up
+            PostDetailCache.invalidate(post.getId()); //Its note count has gone up
         }
         catch (Exception e)
         {
         }
     }
 
+    /**
+     * Adds the next page of posts to the GUI. Pages are requested ahead of
+     * time (READ_AHEAD_PAGES of them, along with their images) so that the next
+     * call normally finds its page already waiting.
+     */
     public void tumblrLoadMore()
     {
-        tumblrUpdate(currentUpdateIndex);
-        currentUpdateIndex++;
+        Future<List<Post>> page;
+        int pageIndex;
+        int pageDrift;
+        synchronized (pageFetches)
+        {
+            pageIndex = currentUpdateIndex++;
+            page = requestPage(pageIndex, false);
+            pageFetches.remove(pageIndex);
+            pageDrift = pageDrifts.remove(pageIndex);
+
+            int readAheadPages = MainViewGUI.prefs.getInt("READ_AHEAD_PAGES", 2);
+            for (int i = 1; i <= readAheadPages; i++)
+            {
+                requestPage(pageIndex + i, true);
+            }
+        }
+
+        List<Post> posts;
+        try
+        {
+            posts = page.get();
+        }
+        catch (InterruptedException | ExecutionException e)
+        {
+            System.err.println("Couldn't retrieve ANY posts!"); //NOI18N
+            return;
+        }
+        tumblrUpdate(dropSeenPosts(posts, pageIndex, pageDrift));
     }
 
-    private void tumblrUpdate(int offsetIndex)
+    /**
+     * Drops posts that are already in the feed. With offset paging these turn
+     * up when posts are added to the top between fetching one page and the
+     * next, pushing everything down; as many posts as came back again have
+     * been pushed off the end of this page. Those are fetched now and every
+     * page requested from then on is moved along to match, so nothing is
+     * skipped or fetched twice.
+     */
+    private List<Post> dropSeenPosts(List<Post> posts, int pageIndex, int pageDrift)
+    {
+        ArrayList<Post> newPosts = new ArrayList<>(posts.size());
+        int seenCount = 0;
+        synchronized (seenPostIds)
+        {
+            for (Post post : posts)
+            {
+                if (seenPostIds.add(post.getId()))
+                {
+                    newPosts.add(post);
+                }
+                else
+                {
+                    seenCount++;
+                }
+            }
+        }
+        if (seenCount == 0 || usesCursorPaging())
+        {
+            return newPosts;
+        }
+
+        synchronized (pageFetches)
+        {
+            offsetDrift = Math.max(offsetDrift, pageDrift + seenCount); //Pages fetched at the same time as this one will report the same drift
+        }
+        try
+        {
+            List<Post> pushedOffPosts = fetchPosts(seekOffset + (pageIndex + 1) * POSTS_LOADED_PER_UPDATE + pageDrift, seenCount);
+            synchronized (seenPostIds)
+            {
+                for (Post post : pushedOffPosts)
+                {
+                    if (seenPostIds.add(post.getId()))
+                    {
+                        newPosts.add(post);
+                    }
+                }
+            }
+        }
+        catch (JumblrException e)
+        {
+            System.err.println("Couldn't fetch posts pushed onto the next page: " + e.getMessage()); //NOI18N
+        }
+        return newPosts;
+    }
+
+    /**
+     * Fetches posts by offset, bypassing the page cache.
+     */
+    private List<Post> fetchPosts(int offset, int limit)
     {
         Map<String, Object> params = new HashMap<>();
-        /*if (currentDisplayMode == DisplayModes.DASHBOARD && lastPostId != null)
-         {
-         params.put("since_id", lastPostId);
-         }
-         else
-         {*/
-        params.put("offset", offsetIndex * POSTS_LOADED_PER_UPDATE);
-        /*}*/
-        params.put("limit", POSTS_LOADED_PER_UPDATE);
+        params.put("offset", offset);
+        params.put("limit", limit);
         params.put("reblog_info", true);
-        List<Post> posts = null;
+        switch (currentDisplayMode)
+        {
+            case POSTS:
+                return client.blogPosts(currentlyViewingBlog, params);
+            case LIKES:
+                return isCurrentUsersBlog() ? client.userLikes(params) : client.blogLikes(currentlyViewingBlog, params);
+            case DASHBOARD:
+                return client.userDashboard(params);
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    private Future<List<Post>> requestPage(final int pageIndex, final boolean prefetchImages)
+    {
+        Future<List<Post>> page = pageFetches.get(pageIndex);
+        if (page == null)
+        {
+            final int pageDrift = offsetDrift;
+            page = pagePrefetchPool.submit(new Callable<List<Post>>()
+            {
+                @Override
+                public List<Post> call()
+                {
+                    List<Post> posts = fetchPage(pageIndex, pageDrift);
+                    if (prefetchImages && ImagePackCache.getInstance() != null)
+                    {
+                        prefetchImages(posts);
+                    }
+                    return posts;
+                }
+            });
+            pageFetches.put(pageIndex, page);
+            pageDrifts.put(pageIndex, pageDrift);
+        }
+        return page;
+    }
+
+    /**
+     * The dashboard and the user's own likes are paged with a cursor (the last
+     * post ID, or the time the last post was liked) rather than an offset, so
+     * that posts arriving at the top while we scroll can't shift the pages
+     * and deep pages cost the same as the first. This means each page has to
+     * wait for the cursor from the page before it.
+     */
+    private boolean usesCursorPaging()
+    {
+        return !cursorPagingUnsupported && (currentDisplayMode == DisplayModes.DASHBOARD || (currentDisplayMode == DisplayModes.LIKES && isCurrentUsersBlog()));
+    }
+
+    private List<Post> fetchPage(int pageIndex, int pageDrift)
+    {
+        if (!usesCursorPaging())
+        {
+            return fetchPage(pageIndex, pageDrift, null).getPosts();
+        }
+
+        Long cursor = pageIndex > 0 ? awaitCursor(pageIndex) : seekCursor;
+        PostPageCache.Page page = null;
         try
         {
-            switch (currentDisplayMode)
+            page = fetchPage(pageIndex, pageDrift, cursor);
+            return page.getPosts();
+        }
+        finally
+        {
+            publishCursor(pageIndex + 1, page != null ? page.getNextCursor() : null); //Without one the next page falls back to its offset
+        }
+    }
+
+    private Long awaitCursor(int pageIndex)
+    {
+        synchronized (pageCursors)
+        {
+            while (!pageCursors.containsKey(pageIndex))
             {
-                case POSTS:
-                    posts = client.blogPosts(currentlyViewingBlog, params);
-                    break;
-                case LIKES:
-                    if (isCurrentUsersBlog())
+                try
+                {
+                    pageCursors.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return pageCursors.remove(pageIndex);
+        }
+    }
+
+    private void publishCursor(int pageIndex, Long cursor)
+    {
+        synchronized (pageCursors)
+        {
+            pageCursors.put(pageIndex, cursor);
+            pageCursors.notifyAll();
+        }
+    }
+
+    private PostPageCache.Page fetchPage(int pageIndex, int pageDrift, Long cursor)
+    {
+        Map<String, Object> params = new HashMap<>();
+        long position;
+        if (cursor == null)
+        {
+            position = seekOffset + pageIndex * POSTS_LOADED_PER_UPDATE + pageDrift;
+            params.put("offset", position);
+        }
+        else
+        {
+            position = cursor;
+            params.put(currentDisplayMode == DisplayModes.DASHBOARD ? "before_id" : "before", cursor);
+        }
+        params.put("limit", POSTS_LOADED_PER_UPDATE);
+        params.put("reblog_info", true);
+
+        PostPageCache.Page page = PostPageCache.get(currentlyViewingBlog, currentDisplayMode, cursor != null, position, POSTS_LOADED_PER_UPDATE);
+        if (page != null)
+        {
+            return page;
+        }
+        List<Post> posts;
+        Long nextCursor = null;
+        switch (currentDisplayMode)
+        {
+            case POSTS:
+                posts = client.blogPosts(currentlyViewingBlog, params);
+                if (!posts.isEmpty())
+                {
+                    SeekIndex.forBlog(currentlyViewingBlog).record((int) position, posts.get(0).getTimestamp(), getPostsTotalForBlog(currentlyViewingBlog));
+                }
+                break;
+            case LIKES:
+                if (isCurrentUsersBlog())
+                {
+                    //Use different method because current user might have set likes to private
+                    ResponseWrapper response = client.getRequestBuilder().get("/user/likes", params);
+                    posts = response.getLikedPosts();
+                    nextCursor = getLastLikedTimestamp(response);
+                }
+                else
+                {
+                    posts = client.blogLikes(currentlyViewingBlog, params);
+                }
+                break;
+            case DASHBOARD:
+                posts = client.userDashboard(params);
+                if (!posts.isEmpty())
+                {
+                    if (cursor != null && posts.get(0).getId() >= cursor)
                     {
-                        posts = client.userLikes(params); //Use different method because current user might have set likes to private
+                        //The API ignored the cursor, so page this view by offset from now on
+                        cursorPagingUnsupported = true;
+                        return fetchPage(pageIndex, pageDrift, null);
                     }
-                    else
+                    nextCursor = posts.get(posts.size() - 1).getId();
+                }
+                break;
+            default:
+                return new PostPageCache.Page(Collections.<Post>emptyList(), null);
+        }
+        page = new PostPageCache.Page(posts, nextCursor);
+        PostPageCache.put(currentlyViewingBlog, currentDisplayMode, cursor != null, position, POSTS_LOADED_PER_UPDATE, page);
+        return page;
+    }
+
+    /**
+     * @return true if this view can be started from a date
+     */
+    public boolean canSeekToDate()
+    {
+        return currentDisplayMode == DisplayModes.POSTS || (currentDisplayMode == DisplayModes.LIKES && isCurrentUsersBlog());
+    }
+
+    /**
+     * @return true if a BlogArchiver can save this view
+     */
+    public boolean canArchive()
+    {
+        return currentDisplayMode == DisplayModes.POSTS || (currentDisplayMode == DisplayModes.LIKES && isCurrentUsersBlog());
+    }
+
+    /**
+     * Makes the view start from the newest post made (or liked) at or before
+     * a time instead of from the top. Must be called before anything has been
+     * loaded. Likes are paged by the time they were made so this is free for
+     * them, while posts are found through the blog's SeekIndex.
+     *
+     * @param date the time to start from
+     */
+    public void seekToDate(Date date)
+    {
+        final long timestamp = date.getTime() / 1000;
+        if (currentDisplayMode == DisplayModes.LIKES)
+        {
+            seekCursor = timestamp + 1;
+            return;
+        }
+
+        seekOffset = SeekIndex.forBlog(currentlyViewingBlog).findOffset(timestamp, getPostsTotalForBlog(currentlyViewingBlog), POSTS_LOADED_PER_UPDATE, new SeekIndex.Probe()
+        {
+            @Override
+            public Long timestampAt(int offset)
+            {
+                Map<String, Object> params = new HashMap<>();
+                params.put("offset", offset);
+                params.put("limit", 1);
+                try
+                {
+                    List<Post> posts = client.blogPosts(currentlyViewingBlog, params);
+                    return posts.isEmpty() ? null : posts.get(0).getTimestamp();
+                }
+                catch (JumblrException e)
+                {
+                    return null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Jumblr doesn't keep the time each post was liked, which is the cursor
+     * the likes endpoint pages by, so read it out of the raw response.
+     *
+     * @return the time the last post in the response was liked or null if it
+     * isn't there
+     */
+    static Long getLastLikedTimestamp(ResponseWrapper response)
+    {
+        try
+        {
+            Field responseField = ResponseWrapper.class.getDeclaredField("response");
+            responseField.setAccessible(true);
+            JsonArray likedPosts = ((JsonElement) responseField.get(response)).getAsJsonObject().getAsJsonArray("liked_posts");
+            if (likedPosts == null || likedPosts.size() == 0)
+            {
+                return null;
+            }
+            JsonElement likedTimestamp = likedPosts.get(likedPosts.size() - 1).getAsJsonObject().get("liked_timestamp");
+            return likedTimestamp != null ? likedTimestamp.getAsLong() : null;
+        }
+        catch (ReflectiveOperationException | RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Queues the images of a page that hasn't been shown yet to be downloaded
+     * into the image cache, behind anything the feed is waiting on, so that
+     * they are there by the time the user scrolls to them.
+     */
+    private void prefetchImages(List<Post> posts)
+    {
+        final DuplicatePhotoFilter photosInPage = new DuplicatePhotoFilter();
+        for (Post post : posts)
+        {
+            synchronized (seenPostIds)
+            {
+                if (seenPostIds.contains(post.getId()))
+                {
+                    continue; //Already in the feed so it will be dropped
+                }
+            }
+            if (post instanceof PhotoPost)
+            {
+                for (Photo photo : ((PhotoPost) post).getPhotos())
+                {
+                    final PhotoSize photoSize = getDisplayPhotoSize(photo);
+                    if (photoSize == null)
                     {
-                        posts = client.blogLikes(currentlyViewingBlog, params);
+                        continue;
                     }
-                    break;
-                case DASHBOARD:
-                    posts = client.userDashboard(params);
-                    break;
+                    final Photo photoToPrefetch = photo;
+                    ImageDownloadPool.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            try
+                            {
+                                if (isDuplicate(photoToPrefetch, photosInPage))
+                                {
+                                    return; //It will be collapsed into a copy that is already shown
+                                }
+                                ImageLoader.load(new URL(photoSize.getUrl()));
+                            }
+                            catch (IOException e)
+                            {
+                                //It will be tried again when it is shown
+                            }
+                        }
+                    }, ImageDownloadPool.PREFETCH_PRIORITY, photoSize.getUrl());
+                }
             }
         }
-        catch (Exception e)
+    }
+
+    /**
+     * Picks which size of a photo is shown in the main view, going by how wide
+     * the feed is now.
+     *
+     * @param photo the photo
+     * @return the size to show or null if the photo has none
+     */
+    PhotoSize getDisplayPhotoSize(Photo photo)
+    {
+        return choosePhotoSize(photo, gui.getNeededPhotoWidth());
+    }
+
+    /**
+     * Picks the smallest size of a photo that is at least a given width, or
+     * the biggest there is if none are. The full size photo is always picked
+     * if FULLSIZE_PHOTOS is set.
+     *
+     * @param photo the photo
+     * @param neededWidth the width in pixels it will be shown at
+     * @return the size or null if the photo has none
+     */
+    static PhotoSize choosePhotoSize(Photo photo, int neededWidth)
+    {
+        if (FULLSIZE_PHOTOS && !photo.getSizes().isEmpty())
         {
-            System.err.println("Couldn't retrieve ANY posts!"); //NOI18N
-            return;
+            return photo.getSizes().get(0); //The first one is the fullsize photo
+        }
+        return chooseSizeForWidth(photo, neededWidth);
+    }
+
+    /**
+     * Picks the smallest size of a photo that is at least a given width, or
+     * the biggest there is if none are.
+     *
+     * @param photo the photo
+     * @param neededWidth the width in pixels wanted
+     * @return the size or null if the photo has none
+     */
+    static PhotoSize chooseSizeForWidth(Photo photo, int neededWidth)
+    {
+        PhotoSize chosen = null;
+        for (PhotoSize photoSize : photo.getSizes())
+        {
+            if (chosen == null)
+            {
+                chosen = photoSize;
+                continue;
+            }
+            boolean bigEnough = photoSize.getWidth() >= neededWidth;
+            boolean chosenBigEnough = chosen.getWidth() >= neededWidth;
+            if (bigEnough ? (!chosenBigEnough || photoSize.getWidth() < chosen.getWidth()) : (!chosenBigEnough && photoSize.getWidth() > chosen.getWidth()))
+            {
+                chosen = photoSize;
+            }
         }
+        return chosen;
+    }
 
+    /**
+     * Hashes a photo being read ahead to see whether it will be collapsed
+     * into one that is in the feed or earlier in the same page.
+     */
+    private boolean isDuplicate(Photo photo, DuplicatePhotoFilter photosInPage)
+    {
+        if (!MainViewGUI.prefs.getBoolean("COLLAPSE_DUPLICATE_PHOTOS", true))
+        {
+            return false;
+        }
+        long photoHash;
+        try
+        {
+            photoHash = DuplicatePhotoFilter.getHash(photo);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            return false;
+        }
+        synchronized (photosInPage)
+        {
+            if (duplicatePhotoFilter.contains(photoHash) || photosInPage.contains(photoHash))
+            {
+                return true;
+            }
+            photosInPage.findOrAdd(photoHash, null);
+            return false;
+        }
+    }
+
+    /**
+     * Hashes a photo that has already been added to the feed and folds it
+     * into the photo it looks the same as, if there is one. The page is never
+     * held up waiting for its hashes.
+     */
+    private void collapseLater(final Photo photo, final FeedView.Entry entry)
+    {
+        ImageDownloadPool.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    FeedView.Entry shownCopy = duplicatePhotoFilter.findOrAdd(DuplicatePhotoFilter.getHash(photo), entry);
+                    if (shownCopy != null)
+                    {
+                        gui.collapseDuplicate(entry, shownCopy);
+                    }
+                }
+                catch (IOException | RuntimeException e)
+                {
+                    //Shown as it is rather than risk hiding it
+                }
+            }
+        }, 0, DuplicatePhotoFilter.getHashUrl(photo));
+    }
+
+    /**
+     * Adds a page of posts to the GUI. Photos that look the same as one
+     * already in the feed are counted against that one instead of being shown
+     * again. Those read ahead have been hashed already so are never added;
+     * the rest are added straight away and collapsed once they are hashed.
+     */
+    private void tumblrUpdate(List<Post> posts)
+    {
+        PostSearchIndex.getInstance().add(posts);
+        boolean collapseDuplicates = MainViewGUI.prefs.getBoolean("COLLAPSE_DUPLICATE_PHOTOS", true);
         for (Post post : posts)
         {
             try
@@ -185,19 +679,24 @@ public class TumblrBackend
                 List<Photo> photosInPost = photoPost.getPhotos();
                 for (Photo photo : photosInPost)
                 {
-
-                    List<PhotoSize> photoSizes = photo.getSizes();
-                    for (PhotoSize photoSize : photoSizes)
+                    PhotoSize photoSize = getDisplayPhotoSize(photo);
+                    if (photoSize != null)
                     {
-                        if (!FULLSIZE_PHOTOS) //The first one is the fullsize photo so this won't run if FULLSIZE_PHOTOS is set to true
+                        FeedView.Entry entry = new FeedView.Entry(photoSize.getUrl(), photoPost, photosInPost.indexOf(photo), photoSize.getWidth(), photoSize.getHeight());
+                        Long photoHash = collapseDuplicates ? DuplicatePhotoFilter.getHashIfKnown(photo) : null;
+                        FeedView.Entry shownCopy = photoHash != null ? duplicatePhotoFilter.findOrAdd(photoHash, entry) : null;
+                        if (shownCopy != null)
+                        {
+                            gui.addDuplicate(shownCopy);
+                        }
+                        else
                         {
-                            if (!photoSize.getUrl().contains("_" + PHOTO_PREFERRED_SIZE + "."))
+                            gui.addEntry(entry);
+                            if (collapseDuplicates && photoHash == null)
                             {
-                                continue; //Wrong size so contine
+                                collapseLater(photo, entry);
                             }
                         }
-                        gui.addImage(photoSize.getUrl(), photoPost, photosInPost.indexOf(photo));
-                        break; //Only add one of the image sizes - we have now done this
                     }
                 }
             }
@@ -209,64 +708,36 @@ public class TumblrBackend
         }
     }
 
-    public boolean isCurrentlyLiked(Post post)
+    /**
+     * Gets the full details of a post (liked, note count, notes and reblog
+     * info) with a single request, shared by everything that shows them.
+     *
+     * @param post the post as it was listed
+     * @return the post with its details filled in
+     */
+    public Post getPostDetail(Post post)
     {
-        String blogName = post.getBlogName();
-        Long postId = post.getId();
+        return PostDetailCache.get(client, post);
+    }
 
-        return client.blogPost(blogName, postId).isLiked();
+    public boolean isCurrentlyLiked(Post post)
+    {
+        return Boolean.TRUE.equals(getPostDetail(post).isLiked());
     }
 
     public Long getCurrentNoteCount(Post post)
     {
-        String blogName = post.getBlogName();
-        Long postId = post.getId();
-
-        Map<String, Object> params = new HashMap<>();
-        params.put("id", postId);
-        params.put("reblog_info", true);
-        params.put("notes_info", true);
-
-        java.util.List<Post> posts = client.blogPosts(blogName, params);
-        PhotoPost detailedPhotoPost = PhotoPost.class.cast(posts.get(0));
-
-        return detailedPhotoPost.getNoteCount();
+        return getPostDetail(post).getNoteCount();
     }
 
     public List<Note> getCurrentNotes(Post post)
     {
-        String blogName = post.getBlogName();
-        Long postId = post.getId();
-
-        Map<String, Object> params = new HashMap<>();
-        params.put("id", postId);
-        params.put("reblog_info", true);
-        params.put("notes_info", true);
-
-        java.util.List<Post> posts = client.blogPosts(blogName, params);
-        PhotoPost detailedPhotoPost = PhotoPost.class.cast(posts.get(0));
-
-        return detailedPhotoPost.getNotes();
+        return getPostDetail(post).getNotes();
     }
 
     public ImageIcon getAvatar(String user, int avatarSize)
     {
-        //String avatarUrl = "http://api.tumblr.com/v2" + JumblrClient.blogPath(user, "/avatar/" + avatarSize);
-
-        String avatarUrl = client.blogAvatar(user, avatarSize);
-
-        try
-        {
-            URL url = new URL(avatarUrl);
-            BufferedImage img;
-            img = ImageIO.read(url);
-
-            return new ImageIcon(img);
-        }
-        catch (IOException e)
-        {
-            return null;
-        }
+        return AvatarCache.getAvatar(client, user, avatarSize);
     }
 
     public boolean canViewLikes()
@@ -277,7 +748,7 @@ public class TumblrBackend
         }
         try
         {
-            if (!client.blogInfo(currentlyViewingBlog).likedPosts().isEmpty())
+            if (!getBlogInfo(currentlyViewingBlog).likedPosts().isEmpty())
             {
                 return true;
             }
@@ -291,101 +762,130 @@ public class TumblrBackend
 
     public boolean isCurrentUsersBlog()
     {
-        return client.user().getName().equals(currentlyViewingBlog);
+        return TumblrSession.getUserName().equals(currentlyViewingBlog);
     }
 
     public String getCurrentUsersName()
     {
-        return client.user().getName();
+        return TumblrSession.getUserName();
     }
 
-    public synchronized boolean isFollowing(String user)
+    public boolean isFollowing(String user)
     {
-        return allUserFollowing.contains(user);
+        return getFollowingCrawler().contains(user);
     }
 
-    public synchronized AbstractCollection<String> getAllUserFollowing()
+    public AbstractCollection<String> getAllUserFollowing()
     {
-        if (allUserFollowing == null)
-        {
-            allUserFollowing = getAllUserFollowingCollection();
-        }
+        return new LinkedHashSet<>(getFollowingCrawler().getAll());
+    }
 
-        return allUserFollowing;
+    public AbstractCollection<String> getAllUserFollowers()
+    {
+        return new LinkedHashSet<>(getFollowersCrawler().getAll());
     }
 
-    public synchronized AbstractCollection<String> getAllUserFollowers()
+    /**
+     * Listens to the list of blogs the current user follows as it loads.
+     *
+     * @param listener told about each part of the list as it arrives
+     */
+    public void addUserFollowingListener(FollowCrawler.Listener listener)
     {
-        if (allUserFollowers == null)
-        {
-            allUserFollowers = getAllUserFollowersCollection();
-        }
-        return allUserFollowers;
+        getFollowingCrawler().addListener(listener);
     }
 
-    private synchronized LinkedHashSet<String> getAllUserFollowingCollection()
+    /**
+     * Listens to the list of the current user's followers as it loads.
+     *
+     * @param listener told about each part of the list as it arrives
+     */
+    public void addUserFollowersListener(FollowCrawler.Listener listener)
     {
-        LinkedHashSet<String> followingList = new LinkedHashSet<>();
-        final int recordsLoadedPerPage = 20;
-        int totalCount = user.getFollowingCount();
+        getFollowersCrawler().addListener(listener);
+    }
 
-        for (int i = 0; i < (totalCount / recordsLoadedPerPage) + 1; i++)
+    private FollowCrawler getFollowingCrawler()
+    {
+        synchronized (TumblrBackend.class)
         {
-            Map<String, Object> params = new HashMap<>();
-            params.put("offset", (i * recordsLoadedPerPage));
-            params.put("limit", recordsLoadedPerPage);
-            List<Blog> usersFollowing = client.userFollowing(params);
-
-            for (Blog userFollowing : usersFollowing)
+            if (userFollowingCrawler == null)
             {
-                followingList.add(userFollowing.getName());
+                userFollowingCrawler = new FollowCrawler(new FollowCrawler.PageSource()
+                {
+                    @Override
+                    public List<String> fetchPage(int offset, int limit)
+                    {
+                        Map<String, Object> params = new HashMap<>();
+                        params.put("offset", offset);
+                        params.put("limit", limit);
+                        List<String> names = new ArrayList<>();
+                        for (Blog userFollowing : client.userFollowing(params))
+                        {
+                            names.add(userFollowing.getName());
+                        }
+                        return names;
+                    }
+                }, TumblrSession.getUser().getFollowingCount(), getFollowSnapshotFile("following"));
+                userFollowingCrawler.start();
             }
+            return userFollowingCrawler;
         }
-        return followingList;
     }
 
-    private synchronized LinkedHashSet<String> getAllUserFollowersCollection()
+    private FollowCrawler getFollowersCrawler()
     {
-        Blog blog = user.getBlogs().get(0); //TODO: Account for multiple blogs
-        LinkedHashSet<String> followersList = new LinkedHashSet<>();
-        final int recordsLoadedPerPage = 20;
-        int totalCount = blog.getFollowersCount();
-
-        for (int i = 0; i < (totalCount / recordsLoadedPerPage) + 1; i++)
+        synchronized (TumblrBackend.class)
         {
-            Map<String, Object> params = new HashMap<>();
-            params.put("offset", (i * recordsLoadedPerPage));
-            params.put("limit", recordsLoadedPerPage);
-            List<User> usersFollowers = blog.followers(params);
-
-            for (User userFollower : usersFollowers)
+            if (userFollowersCrawler == null)
             {
-                followersList.add(userFollower.getName());
+                final Blog blog = TumblrSession.getUser().getBlogs().get(0); //TODO: Account for multiple blogs
+                userFollowersCrawler = new FollowCrawler(new FollowCrawler.PageSource()
+                {
+                    @Override
+                    public List<String> fetchPage(int offset, int limit)
+                    {
+                        Map<String, Object> params = new HashMap<>();
+                        params.put("offset", offset);
+                        params.put("limit", limit);
+                        List<String> names = new ArrayList<>();
+                        for (User userFollower : blog.followers(params))
+                        {
+                            names.add(userFollower.getName());
+                        }
+                        return names;
+                    }
+                }, blog.getFollowersCount(), getFollowSnapshotFile("followers"));
+                userFollowersCrawler.start();
             }
+            return userFollowersCrawler;
         }
-        return followersList;
+    }
+
+    private File getFollowSnapshotFile(String list)
+    {
+        return new File(MainViewGUI.getDataDirectory(), "follow-" + TumblrSession.getUserName() + "-" + list + ".txt");
     }
 
     public void followBlog(String blog)
     {
         client.follow(blog);
-        LinkedHashSet<String> newAllUserFollowingSet = new LinkedHashSet<>(); //new list created so we can add new following blog to start of list
-        newAllUserFollowingSet.add(blog); //Update our internal list
-        newAllUserFollowingSet.addAll(allUserFollowing);
-        allUserFollowing = newAllUserFollowingSet;
+        PostPageCache.invalidate(TumblrSession.getUserName(), DisplayModes.DASHBOARD);
+        getFollowingCrawler().addFirst(blog); //Update our internal list
     }
 
     public void unfollowBlog(String blog)
     {
         client.unfollow(blog);
-        allUserFollowing.remove(blog); //Update our internal list
+        PostPageCache.invalidate(TumblrSession.getUserName(), DisplayModes.DASHBOARD);
+        getFollowingCrawler().remove(blog); //Update our internal list
     }
 
     public boolean blogExists(String blogName)
     {
         try
         {
-            client.blogPosts(blogName);
+            getBlogInfo(blogName); //Also means the view about to open has it ready
         }
         catch (Exception e)
         {
@@ -397,14 +897,14 @@ public class TumblrBackend
 
     public Blog getBlogInfo(String blogName)
     {
-        return client.blogInfo(blogName);
+        return BlogInfoCache.get(client, blogName);
     }
 
     public int getLikesTotalForBlog(String blogName)
     {
         if (isCurrentUsersBlog())
         {
-            return user.getLikeCount();
+            return TumblrSession.getUser().getLikeCount();
         }
         else
         {
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013 Jonathan <jay-to-the-dee@users.noreply.github.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package tumblrviewer;
+
+import com.tumblr.jumblr.JumblrClient;
+import com.tumblr.jumblr.types.User;
+import java.util.ResourceBundle;
+import java.util.concurrent.*;
+
+/**
+ * The signed in session shared by every window. There is only ever one
+ * client, and the signed in user is fetched once and then refreshed in the
+ * background every SESSION_USER_REFRESH_MINUTES, so opening another view
+ * doesn't have to wait on the network to find out who we are.
+ *
+ * @author Jonathan <jay-to-the-dee@users.noreply.github.com>
+ */
+public class TumblrSession
+{
+    private static final ExecutorService refreshPool = Executors.newSingleThreadExecutor(new DaemonThreadFactory("Session Refresher"));
+    /* End of constants*/
+    private static JumblrClient client;
+    private static User user;
+    private static long userFetchedTime;
+    private static boolean refreshing = false;
+
+    /**
+     * Gets the client, signing in with the keys from the Keys bundle the
+     * first time.
+     *
+     * @return the client
+     */
+    public static synchronized JumblrClient getClient()
+    {
+        if (client == null)
+        {
+            ResourceBundle keys = ResourceBundle.getBundle("Keys");
+            JumblrClient newClient = new JumblrClient(keys.getString("consumer_key"), keys.getString("consumer_secret"));
+            newClient.setToken(keys.getString("oauth_token"), keys.getString("oauth_token_secret"));
+            client = newClient;
+        }
+        return client;
+    }
+
+    /**
+     * Gets the signed in user. Only the very first call waits on the
+     * network; after that a copy is returned straight away and refreshed in
+     * the background once it is old.
+     *
+     * @return the signed in user
+     */
+    public static User getUser()
+    {
+        synchronized (TumblrSession.class)
+        {
+            if (user != null)
+            {
+                long refreshInterval = MainViewGUI.prefs.getInt("SESSION_USER_REFRESH_MINUTES", 10) * 60L * 1000;
+                if (!refreshing && System.currentTimeMillis() - userFetchedTime > refreshInterval)
+                {
+                    refreshing = true;
+                    refreshPool.execute(new RefreshUser());
+                }
+                return user;
+            }
+        }
+
+        User fetchedUser = getClient().user();
+        synchronized (TumblrSession.class)
+        {
+            if (user == null)
+            {
+                user = fetchedUser;
+                userFetchedTime = System.currentTimeMillis();
+            }
+            return user;
+        }
+    }
+
+    /**
+     * @return the signed in user's name
+     */
+    public static String getUserName()
+    {
+        return getUser().getName();
+    }
+
+    private static class RefreshUser implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            User fetchedUser = null;
+            try
+            {
+                fetchedUser = getClient().user();
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Couldn't refresh the signed in user: " + e.getMessage()); //NOI18N
+            }
+            synchronized (TumblrSession.class)
+            {
+                if (fetchedUser != null)
+                {
+                    user = fetchedUser;
+                }
+                userFetchedTime = System.currentTimeMillis(); //Don't retry straight away if it failed
+                refreshing = false;
+            }
+        }
+    }
+}